@@ -0,0 +1,149 @@
+package ca.uhn.fhir.jpa.starter.custom;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Group;
+import org.hl7.fhir.r4.model.Patient;
+
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDaoPatient;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.rest.api.SummaryEnum;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.param.TokenParamModifier;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+
+/**
+ * Holds patients and their document Bundles in memory, and serves them through stub DAOs in place of the JPA
+ * server, so the provider runs without a database. The stubs answer the searches the provider makes: Patients
+ * by identifier, and document Bundles by the IHI of their patient, paged by offset and count, counted, and
+ * without the documents of an excluded system. Other search parameters, such as the demographics of a patient
+ * search, are not evaluated. Every other DAO method throws UnsupportedOperationException.
+ * Patients are returned as copies, as the provider changes the Patient it summarizes. The document Bundles are
+ * shared, the provider copies the indexed resources before changing them.
+ */
+class InMemoryDocumentStore {
+
+    private final Map<String, Patient> patientsById = new ConcurrentHashMap<>();
+    private final Map<String, Patient> patientsByIhi = new ConcurrentHashMap<>();
+    private final Map<String, List<Bundle>> documentsByIhi = new ConcurrentHashMap<>();
+
+    void addPatient(Patient patient, List<Bundle> documents) {
+        String ihi = CustomBundleProvider.getIhi(patient);
+        patientsById.put(patient.getIdElement().getIdPart(), patient);
+        patientsByIhi.put(ihi, patient);
+        documentsByIhi.put(ihi, Collections.unmodifiableList(new ArrayList<>(documents)));
+    }
+
+    @SuppressWarnings("unchecked")
+    IFhirResourceDaoPatient<Patient> createPatientDao() {
+        return (IFhirResourceDaoPatient<Patient>) createDao(IFhirResourceDaoPatient.class, Patient.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "search":
+                    return new SimpleBundleProvider(searchPatients((SearchParameterMap) args[0]));
+                case "searchForResources":
+                    return searchPatients((SearchParameterMap) args[0]);
+                case "read":
+                    Patient patient = patientsById.get(((IIdType) args[0]).getIdPart());
+                    if (patient == null) {
+                        throw new ResourceNotFoundException((IIdType) args[0]);
+                    }
+                    return patient.copy();
+                default:
+                    return unsupported(method.getName());
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    IFhirResourceDao<Bundle> createBundleDao() {
+        return (IFhirResourceDao<Bundle>) createDao(IFhirResourceDao.class, Bundle.class, (proxy, method, args) -> {
+            if (method.getName().equals("search")) {
+                return searchDocuments((SearchParameterMap) args[0]);
+            }
+            return unsupported(method.getName());
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    IFhirResourceDao<Group> createGroupDao() {
+        return (IFhirResourceDao<Group>) createDao(IFhirResourceDao.class, Group.class,
+            (proxy, method, args) -> unsupported(method.getName()));
+    }
+
+    private List<Patient> searchPatients(SearchParameterMap params) {
+        TokenParam identifier = getToken(params, Patient.SP_IDENTIFIER);
+        if (identifier == null || !CustomBundleProvider.IHI_SYSTEM.equals(identifier.getSystem())) {
+            return Collections.emptyList();
+        }
+        Patient patient = patientsByIhi.get(identifier.getValue());
+        return patient != null ? List.of(patient.copy()) : Collections.emptyList();
+    }
+
+    private SimpleBundleProvider searchDocuments(SearchParameterMap params) {
+        TokenParam ihi = getToken(params, "composition.patient.identifier");
+        List<Bundle> documents = ihi != null ? documentsByIhi.getOrDefault(ihi.getValue(), Collections.emptyList())
+            : Collections.emptyList();
+
+        TokenParam excluded = getToken(params, Bundle.SP_IDENTIFIER);
+        if (excluded != null && excluded.getModifier() == TokenParamModifier.NOT) {
+            List<Bundle> included = new ArrayList<>(documents.size());
+            for (Bundle document : documents) {
+                if (!excluded.getSystem().equals(document.getIdentifier().getSystem())) {
+                    included.add(document);
+                }
+            }
+            documents = included;
+        }
+        if (params.getSummaryMode() == SummaryEnum.COUNT) {
+            return new SimpleBundleProvider(documents.size());
+        }
+
+        int offset = params.getOffset() != null ? params.getOffset() : 0;
+        int count = params.getCount() != null ? params.getCount() : documents.size();
+        List<IBaseResource> page = new ArrayList<>(documents.subList(Math.min(offset, documents.size()),
+            Math.min(offset + count, documents.size())));
+        return new SimpleBundleProvider(page);
+    }
+
+    private static TokenParam getToken(SearchParameterMap params, String name) {
+        List<List<IQueryParameterType>> andList = params.get(name);
+        if (andList == null || andList.isEmpty() || andList.get(0).isEmpty()) return null;
+        IQueryParameterType param = andList.get(0).get(0);
+        return param instanceof TokenParam ? (TokenParam) param : null;
+    }
+
+    private static Object createDao(Class<?> daoType, Class<? extends IBaseResource> resourceType,
+            InvocationHandler handler) {
+        return Proxy.newProxyInstance(InMemoryDocumentStore.class.getClassLoader(), new Class<?>[] {daoType},
+            (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getResourceType":
+                        return resourceType;
+                    case "toString":
+                        return "InMemory" + resourceType.getSimpleName() + "Dao";
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    default:
+                        return handler.invoke(proxy, method, args);
+                }
+            });
+    }
+
+    private static Object unsupported(String methodName) {
+        throw new UnsupportedOperationException(methodName + " is not supported by the in-memory DAOs.");
+    }
+}
@@ -0,0 +1,215 @@
+package ca.uhn.fhir.jpa.starter.custom;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Patient;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.param.CompositeOrListParam;
+import ca.uhn.fhir.rest.param.CompositeParam;
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+
+/**
+ * Load tests {@code findContentByPatient} end to end without a server or a database. The provider runs with
+ * its caches in a {@link SummaryFixture}, over a synthetic corpus, and is called from a growing number of
+ * threads, from 1 to the number of cores. Each request matches the patient, loads and indexes the documents,
+ * generates the summary and serializes it as JSON, as the server would.
+ * For each number of threads the report gives the throughput, its scaling against a single thread, the p50,
+ * p95 and p99 latencies and the bytes allocated per request. Contention on state shared by the requests shows
+ * as throughput that stops growing with the threads.
+ * The caches keep their server defaults, and take any {@code mhr.ps} setting given as a system property, e.g.
+ * {@code -Dmhr.ps.summary-cache.max-entries=0} to measure the generation without the summary cache.
+ *
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar ca.uhn.fhir.jpa.starter.custom.PatientSummaryLoadHarness \
+ *     [--patients 200] [--documents 20] [--entries 20] [--mix Type=weight,...] [--duplication 0.2] \
+ *     [--requests 2000] [--warmup 1000] [--threads 1,2,4,...]
+ * </pre>
+ */
+public class PatientSummaryLoadHarness {
+
+    private static final String PATIENT_SUMMARY_CODE = "60591-5";
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        int patients = Integer.parseInt(options.getOrDefault("patients", "200"));
+        int documents = Integer.parseInt(options.getOrDefault("documents", "20"));
+        int entries = Integer.parseInt(options.getOrDefault("entries", "20"));
+        String mix = options.getOrDefault("mix", SyntheticDocumentGenerator.DEFAULT_MIX);
+        double duplication = Double.parseDouble(options.getOrDefault("duplication", "0.2"));
+        int requests = Integer.parseInt(options.getOrDefault("requests", "2000"));
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "1000"));
+        List<Integer> threadCounts = parseThreadCounts(options.get("threads"));
+
+        System.out.printf(Locale.ROOT, "Generating %d patients with %d documents of %d entries%n", patients,
+            documents, entries);
+        SyntheticDocumentGenerator generator = new SyntheticDocumentGenerator(entries, mix, duplication, 42);
+        try (SummaryFixture fixture = new SummaryFixture(patients, documents, generator, Map.of())) {
+            PatientSummaryLoadHarness harness = new PatientSummaryLoadHarness(fixture);
+            harness.run(threadCounts.get(threadCounts.size() - 1), warmup);
+
+            System.out.printf(Locale.ROOT, "%8s %12s %8s %10s %10s %10s %14s%n", "threads", "requests/s", "scaling",
+                "p50 ms", "p95 ms", "p99 ms", "KB/request");
+            double singleThroughput = 0;
+            for (int threads : threadCounts) {
+                Result result = harness.run(threads, requests);
+                if (singleThroughput == 0) {
+                    singleThroughput = result.throughput / threads;
+                }
+                System.out.printf(Locale.ROOT, "%8d %12.1f %8.2f %10.2f %10.2f %10.2f %14.1f%n", threads,
+                    result.throughput, result.throughput / singleThroughput, result.percentileMillis(50),
+                    result.percentileMillis(95), result.percentileMillis(99), result.bytesPerRequest / 1024.0);
+            }
+        }
+    }
+
+    private final SummaryFixture fixture;
+    private final IParser parser = FhirContext.forR4Cached().newJsonParser();
+
+    PatientSummaryLoadHarness(SummaryFixture fixture) {
+        this.fixture = fixture;
+    }
+
+    /**
+     * Runs the requests spread over the threads, each thread going through the patients from its own offset.
+     */
+    Result run(int threads, int requests) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<long[]>> workers = new ArrayList<>();
+            int perThread = Math.max(requests / threads, 1);
+            for (int t = 0; t < threads; t++) {
+                int offset = t * fixture.getPatients().size() / threads;
+                workers.add(executor.submit(() -> {
+                    start.await();
+                    return runRequests(offset, perThread);
+                }));
+            }
+
+            long startNanos = System.nanoTime();
+            start.countDown();
+            long[] latencies = new long[perThread * threads];
+            long allocatedBytes = 0;
+            for (int t = 0; t < threads; t++) {
+                long[] worker = workers.get(t).get();
+                // the last element of a worker holds the bytes it allocated
+                System.arraycopy(worker, 0, latencies, t * perThread, perThread);
+                allocatedBytes += worker[perThread];
+            }
+            long elapsedNanos = System.nanoTime() - startNanos;
+            return new Result(latencies, latencies.length / (elapsedNanos / 1e9), (double) allocatedBytes / latencies.length);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return The latency of each request in nanoseconds, followed by the bytes allocated by the thread.
+     */
+    private long[] runRequests(int offset, int requests) throws IOException {
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+
+        List<Patient> patients = fixture.getPatients();
+        long[] latencies = new long[requests + 1];
+        for (int i = 0; i < requests; i++) {
+            Patient patient = patients.get((offset + i) % patients.size());
+            long startNanos = System.nanoTime();
+            request(patient);
+            latencies[i] = System.nanoTime() - startNanos;
+        }
+        latencies[requests] = threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        return latencies;
+    }
+
+    /**
+     * Requests the summary of the patient with its optional sections, and serializes the response.
+     */
+    private void request(Patient patient) throws IOException {
+        CompositeOrListParam<TokenParam, DateParam> sections = new CompositeOrListParam<>(TokenParam.class, DateParam.class);
+        for (String code : new String[] {"11369-6", "47519-4", "81338-6"}) {
+            sections.addOr(new CompositeParam<>(new TokenParam("http://loinc.org", code), new DateParam()));
+        }
+        IBundleProvider response = fixture.getProvider().discoverContentByPatient(
+            new TokenParam(CustomBundleProvider.IHI_SYSTEM, CustomBundleProvider.getIhi(patient)),
+            new DateParam(SyntheticDocumentGenerator.BIRTH_DATE),
+            new StringParam(patient.getNameFirstRep().getFamily()),
+            new TokenParam("http://hl7.org/fhir/administrative-gender", patient.getGender().toCode()),
+            new TokenParam("http://loinc.org", PATIENT_SUMMARY_CODE),
+            sections, null, null, null, null, new SystemRequestDetails());
+        for (IBaseResource resource : response.getResources(0, response.size())) {
+            parser.encodeResourceToWriter(resource, Writer.nullWriter());
+        }
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument " + args[i] + ", options are --name value.");
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        return options;
+    }
+
+    /**
+     * @return The given thread counts, or else 1 and the powers of 2 up to the number of cores, and the cores.
+     */
+    private static List<Integer> parseThreadCounts(String threads) {
+        List<Integer> threadCounts = new ArrayList<>();
+        if (threads != null) {
+            for (String count : threads.split(",")) {
+                threadCounts.add(Integer.parseInt(count.trim()));
+            }
+            return threadCounts;
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int count = 1; count < cores; count *= 2) {
+            threadCounts.add(count);
+        }
+        threadCounts.add(cores);
+        return threadCounts;
+    }
+
+    /**
+     * The latencies, throughput and allocation of a run.
+     */
+    static class Result {
+        private final long[] latencies;
+        private final double throughput;
+        private final double bytesPerRequest;
+
+        Result(long[] latencies, double throughput, double bytesPerRequest) {
+            this.latencies = latencies.clone();
+            Arrays.sort(this.latencies);
+            this.throughput = throughput;
+            this.bytesPerRequest = bytesPerRequest;
+        }
+
+        double percentileMillis(int percentile) {
+            int index = (int) Math.ceil(percentile / 100.0 * latencies.length) - 1;
+            return latencies[Math.max(index, 0)] / 1e6;
+        }
+    }
+}
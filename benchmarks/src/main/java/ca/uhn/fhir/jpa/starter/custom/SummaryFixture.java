@@ -0,0 +1,96 @@
+package ca.uhn.fhir.jpa.starter.custom;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Group;
+import org.hl7.fhir.r4.model.Patient;
+import org.springframework.beans.factory.support.RootBeanDefinition;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.env.MapPropertySource;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
+import ca.uhn.fhir.interceptor.executor.InterceptorService;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDaoPatient;
+
+/**
+ * Runs the provider and its caches as the server wires them, in a Spring context scanning this package, with
+ * the DAOs of an {@link InMemoryDocumentStore} holding a synthetic corpus. The {@code mhr.ps.*} settings
+ * default as in the server, and can be given as system properties or as overrides.
+ */
+class SummaryFixture implements AutoCloseable {
+
+    private final AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+    private final List<Patient> patients = new ArrayList<>();
+    private final Map<Patient, List<Bundle>> documents = new LinkedHashMap<>();
+    private final CustomBundleProvider provider;
+
+    /**
+     * @param patientCount The number of patients of the corpus.
+     * @param documentsPerPatient The number of documents of each patient.
+     * @param generator Generates the documents of each patient.
+     * @param settings Overrides of {@code mhr.ps.*} settings.
+     */
+    SummaryFixture(int patientCount, int documentsPerPatient, SyntheticDocumentGenerator generator,
+            Map<String, Object> settings) {
+        InMemoryDocumentStore store = new InMemoryDocumentStore();
+        for (int p = 0; p < patientCount; p++) {
+            Patient patient = SyntheticDocumentGenerator.createPatient("patient-" + p, String.format("80036010%08d", p));
+            List<Bundle> patientDocuments = generator.generate(patient, "doc-" + p, documentsPerPatient);
+            store.addPatient(patient, patientDocuments);
+            patients.add(patient);
+            documents.put(patient, patientDocuments);
+        }
+
+        FhirContext fhirContext = FhirContext.forR4Cached();
+        context.getEnvironment().getPropertySources().addFirst(new MapPropertySource("fixture", settings));
+        context.registerBean(FhirContext.class, () -> fhirContext);
+        context.registerBean(IInterceptorService.class, () -> new InterceptorService());
+        registerDao("patientDao", IFhirResourceDaoPatient.class, Patient.class, store.createPatientDao());
+        registerDao("bundleDao", IFhirResourceDao.class, Bundle.class, store.createBundleDao());
+        registerDao("groupDao", IFhirResourceDao.class, Group.class, store.createGroupDao());
+        context.scan(CustomBundleProvider.class.getPackageName());
+        context.refresh();
+        provider = context.getBean(CustomBundleProvider.class);
+    }
+
+    private <T> void registerDao(String name, Class<T> daoType, Class<?> resourceType, T dao) {
+        // the DAOs are told apart by the generic type of their resource, as in the server
+        RootBeanDefinition definition = new RootBeanDefinition();
+        definition.setTargetType(ResolvableType.forClassWithGenerics(daoType, resourceType));
+        definition.setInstanceSupplier(() -> dao);
+        context.registerBeanDefinition(name, definition);
+    }
+
+    CustomBundleProvider getProvider() {
+        return provider;
+    }
+
+    List<Patient> getPatients() {
+        return patients;
+    }
+
+    List<Bundle> getDocuments(Patient patient) {
+        return documents.get(patient);
+    }
+
+    /**
+     * Indexes the documents of a patient as the provider does for a request.
+     */
+    PatientDocumentIndex indexDocuments(Patient patient) {
+        PatientDocumentIndex documentIndex = CustomBundleProvider.createDocumentIndex();
+        documentIndex.addDocuments(documents.get(patient));
+        return documentIndex;
+    }
+
+    @Override
+    public void close() {
+        context.close();
+    }
+}
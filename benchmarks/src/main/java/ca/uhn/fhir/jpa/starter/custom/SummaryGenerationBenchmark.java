@@ -0,0 +1,195 @@
+package ca.uhn.fhir.jpa.starter.custom;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Composition.SectionComponent;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Practitioner;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+
+/**
+ * Measures the generation of the MHR PS Bundle from the indexed documents of one synthetic patient: the whole
+ * summary, each section on its own, the Provenance of the section resources, the identifier lookup of the
+ * agents, and the serialization of the summary. The documents are indexed once per trial, so the document
+ * search and parsing are not measured here, see {@link PatientSummaryLoadHarness}.
+ * Run with the gc profiler for the allocation rate, which {@link BenchmarkMain} adds by default.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SummaryGenerationBenchmark {
+
+    @Param({"10", "100"})
+    public int documents;
+
+    @Param({"20"})
+    public int entriesPerDocument;
+
+    @Param({SyntheticDocumentGenerator.DEFAULT_MIX})
+    public String resourceMix;
+
+    @Param({"0.0", "0.3"})
+    public double duplicationRate;
+
+    // how clinical items recorded in several documents are recognized: none, identifier or content
+    @Param({"none"})
+    public String dedupeKey;
+
+    @Param({"FULL"})
+    public String narrativeMode;
+
+    private SummaryFixture fixture;
+    private CustomBundleProvider provider;
+    private Patient patient;
+    private PatientDocumentIndex documentIndex;
+    private NarrativeBuilder.Mode mode;
+    private List<Map.Entry<TokenParam, DateParam>> sectionLookbacks;
+    private List<PatientDocumentIndex.IndexedEntry> provenanceEntries;
+    private List<Practitioner> agents;
+    private Bundle summary;
+    private IParser parser;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SyntheticDocumentGenerator generator = new SyntheticDocumentGenerator(entriesPerDocument, resourceMix,
+            duplicationRate, 42);
+        fixture = new SummaryFixture(1, documents, generator, Map.of("mhr.ps.dedupe.key", dedupeKey));
+        provider = fixture.getProvider();
+        patient = fixture.getPatients().get(0);
+        documentIndex = fixture.indexDocuments(patient);
+        mode = NarrativeBuilder.Mode.valueOf(narrativeMode);
+
+        // the optional sections with their default lookbacks
+        sectionLookbacks = new ArrayList<>();
+        for (String code : new String[] {"11369-6", "47519-4", "81338-6"}) {
+            sectionLookbacks.add(new AbstractMap.SimpleEntry<>(new TokenParam("http://loinc.org", code), null));
+        }
+
+        provenanceEntries = documentIndex.getEntries(false, ResourceType.Condition, ResourceType.AllergyIntolerance,
+            ResourceType.MedicationStatement, ResourceType.Immunization, ResourceType.Procedure);
+        agents = new ArrayList<>();
+        for (Bundle document : fixture.getDocuments(patient)) {
+            for (Bundle.BundleEntryComponent entry : document.getEntry()) {
+                if (entry.getResource() instanceof Practitioner) {
+                    agents.add((Practitioner) entry.getResource());
+                }
+            }
+        }
+
+        summary = generateSummary();
+        parser = FhirContext.forR4Cached().newJsonParser();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fixture.close();
+    }
+
+    private Bundle generateSummary() {
+        // the Patient is changed by the generation
+        return provider.generateMHRPS(patient.copy(), sectionLookbacks, mode, documentIndex, new SummaryStatistics(),
+            RequestDeadline.NONE);
+    }
+
+    private Bundle createSummaryBundle() {
+        return provider.createSummaryBundle(patient.copy(), mode, new SummaryStatistics());
+    }
+
+    @Benchmark
+    public Bundle fullSummary() {
+        return generateSummary();
+    }
+
+    @Benchmark
+    public SectionComponent allergiesSection() {
+        return provider.allergiesSection(documentIndex, createSummaryBundle(), patient.getIdPart(), mode);
+    }
+
+    @Benchmark
+    public SectionComponent problemsSection() {
+        return provider.problemsSection(documentIndex, createSummaryBundle(), patient.getIdPart(), mode);
+    }
+
+    @Benchmark
+    public SectionComponent medicationsSection() {
+        return provider.medicationsSection(documentIndex, createSummaryBundle(), patient.getIdPart(), mode);
+    }
+
+    @Benchmark
+    public SectionComponent immunizationsSection() {
+        return provider.immunizationsSection(documentIndex, createSummaryBundle(), patient.getIdPart(),
+            lookback(2), mode);
+    }
+
+    @Benchmark
+    public SectionComponent procedureHistorySection() {
+        return provider.procedureHistorySection(documentIndex, createSummaryBundle(), patient.getIdPart(),
+            lookback(5), mode);
+    }
+
+    @Benchmark
+    public SectionComponent patientStorySection() {
+        return provider.patientStorySection(documentIndex, createSummaryBundle(), patient.getIdPart(), mode);
+    }
+
+    /**
+     * The Provenance of every clinical resource of the summary, each from its own source document.
+     */
+    @Benchmark
+    public Bundle provenance() {
+        Bundle mhrPsBundle = createSummaryBundle();
+        for (int i = 0; i < provenanceEntries.size(); i++) {
+            provider.generateProvenance(mhrPsBundle, provenanceEntries.get(i).getDocumentContext(), "target-" + i);
+        }
+        return mhrPsBundle;
+    }
+
+    /**
+     * The lookup of the document authors among the agents of a generated summary.
+     */
+    @Benchmark
+    public void findResourceFullUrlByIdentifier(Blackhole blackhole) {
+        for (Practitioner agent : agents) {
+            blackhole.consume(provider.findResourceFullUrlByIdentifier(agent, summary));
+        }
+    }
+
+    @Benchmark
+    public void serialization() throws IOException {
+        parser.encodeResourceToWriter(summary, Writer.nullWriter());
+    }
+
+    private static Date lookback(int years) {
+        return new Date(System.currentTimeMillis() - years * 365L * 24 * 60 * 60 * 1000);
+    }
+}
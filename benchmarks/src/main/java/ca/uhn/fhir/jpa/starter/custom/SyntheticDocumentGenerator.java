@@ -0,0 +1,284 @@
+package ca.uhn.fhir.jpa.starter.custom;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import org.hl7.fhir.r4.model.AllergyIntolerance;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Composition;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.DateType;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Goal;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Immunization;
+import org.hl7.fhir.r4.model.MedicationRequest;
+import org.hl7.fhir.r4.model.MedicationStatement;
+import org.hl7.fhir.r4.model.Meta;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Practitioner;
+import org.hl7.fhir.r4.model.Procedure;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ResourceType;
+
+/**
+ * Generates synthetic MHR document Bundles for a patient. Every document starts with its Composition, followed
+ * by the Patient, the authoring Practitioner and Organization, and a number of clinical entries drawn from a
+ * resource type mix. A share of the clinical entries repeats an item of an earlier document, with the same
+ * identifier and code, as the same item recorded in several documents does.
+ * The documents only depend on the parameters and the seed, so every run generates the same corpus.
+ */
+class SyntheticDocumentGenerator {
+
+    static final String DEFAULT_MIX = "Condition=3,AllergyIntolerance=1,MedicationStatement=2,MedicationRequest=1,"
+        + "Immunization=1,Procedure=1,Goal=1";
+
+    /** The birth date of every generated Patient, to match them by their demographics. */
+    static final String BIRTH_DATE = "1970-01-01";
+
+    private static final String ITEM_SYSTEM = "urn:synthetic:clinical-item";
+    private static final String HPII_SYSTEM = "http://ns.electronichealth.net.au/id/hi/hpii/1.0";
+    private static final String HPIO_SYSTEM = "http://ns.electronichealth.net.au/id/hi/hpio/1.0";
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+    // authors and organizations are drawn from small pools, as a patient sees few of them
+    private static final int AUTHOR_POOL = 8;
+
+    private final int entriesPerDocument;
+    private final double duplicationRate;
+    private final List<ResourceType> mix = new ArrayList<>();
+    private final long seed;
+
+    /**
+     * @param entriesPerDocument The number of clinical entries of a document.
+     * @param resourceMix The weight of each clinical resource type, as {@code Type=weight,...}.
+     * @param duplicationRate The share of clinical entries, from 0 to 1, repeating an item of an earlier document.
+     * @param seed The seed of the generated values.
+     */
+    SyntheticDocumentGenerator(int entriesPerDocument, String resourceMix, double duplicationRate, long seed) {
+        this.entriesPerDocument = entriesPerDocument;
+        this.duplicationRate = duplicationRate;
+        this.seed = seed;
+        for (Map.Entry<ResourceType, Integer> weight : parseMix(resourceMix).entrySet()) {
+            for (int i = 0; i < weight.getValue(); i++) {
+                mix.add(weight.getKey());
+            }
+        }
+        if (mix.isEmpty()) {
+            throw new IllegalArgumentException("The resource mix '" + resourceMix + "' has no resource type.");
+        }
+    }
+
+    private static Map<ResourceType, Integer> parseMix(String resourceMix) {
+        Map<ResourceType, Integer> weights = new LinkedHashMap<>();
+        for (String part : resourceMix.split(",")) {
+            if (part.isBlank()) continue;
+            String[] typeAndWeight = part.trim().split("=");
+            ResourceType type = ResourceType.fromCode(typeAndWeight[0].trim());
+            switch (type) {
+                case Condition:
+                case AllergyIntolerance:
+                case MedicationStatement:
+                case MedicationRequest:
+                case Immunization:
+                case Procedure:
+                case Goal:
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported resource type " + type + " in the resource mix.");
+            }
+            weights.put(type, typeAndWeight.length > 1 ? Integer.parseInt(typeAndWeight[1].trim()) : 1);
+        }
+        return weights;
+    }
+
+    /**
+     * Creates the Patient the documents are generated for.
+     */
+    static Patient createPatient(String patientId, String ihi) {
+        Patient patient = new Patient();
+        patient.setId(new IdType("Patient", patientId, "1"));
+        patient.addIdentifier().setSystem(CustomBundleProvider.IHI_SYSTEM).setValue(ihi);
+        patient.addName(new HumanName().setFamily("Synthetic").addGiven("Patient " + patientId));
+        patient.setGender(Enumerations.AdministrativeGender.FEMALE);
+        patient.setBirthDateElement(new DateType(BIRTH_DATE));
+        return patient;
+    }
+
+    /**
+     * Generates the documents of a patient, the oldest first.
+     *
+     * @param documentIdPrefix Prefixes the ids of the document Bundles, unique per patient.
+     * @param documents The number of documents.
+     */
+    List<Bundle> generate(Patient patient, String documentIdPrefix, int documents) {
+        Random random = new Random(seed ^ documentIdPrefix.hashCode());
+        List<Resource> items = new ArrayList<>();
+        List<Bundle> bundles = new ArrayList<>(documents);
+        long now = System.currentTimeMillis();
+        for (int d = 0; d < documents; d++) {
+            // spread over the last three years, so the lookbacks of the optional sections leave some entries out
+            Date documentDate = new Date(now - (long) (documents - d) * 3 * 365 * DAY_MILLIS / documents);
+            bundles.add(generateDocument(patient, documentIdPrefix + "-" + d, documentDate, items, random));
+        }
+        return bundles;
+    }
+
+    private Bundle generateDocument(Patient patient, String documentId, Date documentDate, List<Resource> items,
+            Random random) {
+        Bundle document = new Bundle();
+        document.setId(new IdType("Bundle", documentId, "1"));
+        document.setMeta(new Meta().setVersionId("1").setLastUpdated(documentDate));
+        document.setType(Bundle.BundleType.DOCUMENT);
+        document.setIdentifier(new Identifier().setSystem("urn:ietf:rfc:3986").setValue(uuid(random)));
+        document.setTimestamp(documentDate);
+
+        String patientUrl = uuid(random);
+        String authorUrl = uuid(random);
+        String organizationUrl = uuid(random);
+        int author = random.nextInt(AUTHOR_POOL);
+
+        Composition composition = new Composition();
+        composition.setId(uuid(random).substring("urn:uuid:".length()));
+        composition.setIdentifier(new Identifier().setSystem("urn:ietf:rfc:3986").setValue(uuid(random)));
+        composition.setStatus(Composition.CompositionStatus.FINAL);
+        composition.setType(new CodeableConcept(new Coding("http://loinc.org", "60591-5", "Patient summary Document")));
+        composition.setSubject(new Reference(patientUrl));
+        composition.setDate(documentDate);
+        composition.addAuthor(new Reference(authorUrl));
+        composition.setCustodian(new Reference(organizationUrl));
+        composition.setTitle("Shared Health Summary");
+        document.addEntry().setFullUrl(uuid(random)).setResource(composition);
+
+        Patient documentPatient = patient.copy();
+        documentPatient.setId(patientUrl.substring("urn:uuid:".length()));
+        document.addEntry().setFullUrl(patientUrl).setResource(documentPatient);
+
+        Practitioner practitioner = new Practitioner();
+        practitioner.setId(authorUrl.substring("urn:uuid:".length()));
+        practitioner.addIdentifier().setSystem(HPII_SYSTEM).setValue("80036100000000" + author);
+        practitioner.addName(new HumanName().setFamily("Author " + author));
+        document.addEntry().setFullUrl(authorUrl).setResource(practitioner);
+
+        Organization organization = new Organization();
+        organization.setId(organizationUrl.substring("urn:uuid:".length()));
+        organization.addIdentifier().setSystem(HPIO_SYSTEM).setValue("80036200000000" + author);
+        organization.setName("Practice " + author);
+        document.addEntry().setFullUrl(organizationUrl).setResource(organization);
+
+        for (int e = 0; e < entriesPerDocument; e++) {
+            Resource item;
+            if (!items.isEmpty() && random.nextDouble() < duplicationRate) {
+                // the same clinical item, recorded again in this document
+                item = items.get(random.nextInt(items.size())).copy();
+            } else {
+                item = createItem(mix.get(random.nextInt(mix.size())), items.size(), documentDate, random);
+                items.add(item);
+            }
+            String itemUrl = uuid(random);
+            item.setId(itemUrl.substring("urn:uuid:".length()));
+            setReferences(item, patientUrl, authorUrl);
+            document.addEntry().setFullUrl(itemUrl).setResource(item);
+        }
+        return document;
+    }
+
+    private static Resource createItem(ResourceType type, int itemNumber, Date documentDate, Random random) {
+        Identifier identifier = new Identifier().setSystem(ITEM_SYSTEM).setValue("item-" + itemNumber);
+        CodeableConcept code = new CodeableConcept(new Coding("http://snomed.info/sct",
+            Integer.toString(100000 + random.nextInt(900000)), type + " " + itemNumber)).setText(type + " " + itemNumber);
+        Date date = new Date(documentDate.getTime() - random.nextInt(365) * DAY_MILLIS);
+        switch (type) {
+            case Condition:
+                Condition condition = new Condition();
+                condition.addIdentifier(identifier);
+                condition.setCode(code);
+                condition.setClinicalStatus(new CodeableConcept(new Coding(
+                    "http://terminology.hl7.org/CodeSystem/condition-clinical", "active", null)));
+                condition.setOnset(new DateTimeType(date));
+                return condition;
+            case AllergyIntolerance:
+                AllergyIntolerance allergy = new AllergyIntolerance();
+                allergy.addIdentifier(identifier);
+                allergy.setCode(code);
+                allergy.setClinicalStatus(new CodeableConcept(new Coding(
+                    "http://terminology.hl7.org/CodeSystem/allergyintolerance-clinical", "active", null)));
+                allergy.setOnset(new DateTimeType(date));
+                return allergy;
+            case MedicationStatement:
+                MedicationStatement statement = new MedicationStatement();
+                statement.addIdentifier(identifier);
+                statement.setMedication(code);
+                statement.setStatus(MedicationStatement.MedicationStatementStatus.ACTIVE);
+                statement.setEffective(new DateTimeType(date));
+                statement.addDosage().setText("1 tablet daily");
+                return statement;
+            case MedicationRequest:
+                MedicationRequest request = new MedicationRequest();
+                request.addIdentifier(identifier);
+                request.setMedication(code);
+                request.setStatus(MedicationRequest.MedicationRequestStatus.ACTIVE);
+                request.setIntent(MedicationRequest.MedicationRequestIntent.ORDER);
+                request.setAuthoredOn(date);
+                request.addDosageInstruction().setText("1 tablet twice daily");
+                return request;
+            case Immunization:
+                Immunization immunization = new Immunization();
+                immunization.addIdentifier(identifier);
+                immunization.setVaccineCode(code);
+                immunization.setStatus(Immunization.ImmunizationStatus.COMPLETED);
+                immunization.setOccurrence(new DateTimeType(date));
+                return immunization;
+            case Procedure:
+                Procedure procedure = new Procedure();
+                procedure.addIdentifier(identifier);
+                procedure.setCode(code);
+                procedure.setStatus(Procedure.ProcedureStatus.COMPLETED);
+                procedure.setPerformed(new DateTimeType(date));
+                return procedure;
+            case Goal:
+                Goal goal = new Goal();
+                goal.addIdentifier(identifier);
+                goal.setDescription(code);
+                goal.setLifecycleStatus(Goal.GoalLifecycleStatus.ACTIVE);
+                return goal;
+            default:
+                throw new IllegalArgumentException("Unsupported resource type " + type + ".");
+        }
+    }
+
+    private static void setReferences(Resource item, String patientUrl, String authorUrl) {
+        if (item instanceof Condition) {
+            ((Condition) item).setSubject(new Reference(patientUrl)).setRecorder(new Reference(authorUrl));
+        } else if (item instanceof AllergyIntolerance) {
+            ((AllergyIntolerance) item).setPatient(new Reference(patientUrl)).setRecorder(new Reference(authorUrl));
+        } else if (item instanceof MedicationStatement) {
+            ((MedicationStatement) item).setSubject(new Reference(patientUrl));
+        } else if (item instanceof MedicationRequest) {
+            ((MedicationRequest) item).setSubject(new Reference(patientUrl)).setRequester(new Reference(authorUrl));
+        } else if (item instanceof Immunization) {
+            ((Immunization) item).setPatient(new Reference(patientUrl));
+            ((Immunization) item).addPerformer().setActor(new Reference(authorUrl));
+        } else if (item instanceof Procedure) {
+            ((Procedure) item).setSubject(new Reference(patientUrl));
+            ((Procedure) item).addPerformer().setActor(new Reference(authorUrl));
+        } else if (item instanceof Goal) {
+            ((Goal) item).setSubject(new Reference(patientUrl));
+        }
+    }
+
+    private static String uuid(Random random) {
+        return "urn:uuid:" + new UUID(random.nextLong(), random.nextLong());
+    }
+}
@@ -0,0 +1,157 @@
+package ca.uhn.fhir.jpa.starter.custom;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import org.hl7.fhir.r4.model.AllergyIntolerance;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Immunization;
+import org.hl7.fhir.r4.model.Period;
+import org.hl7.fhir.r4.model.Procedure;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Range;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.Type;
+
+/**
+ * Keys identifying the same clinical item, such as a problem or an allergy, when it is recorded in several
+ * documents of a patient. Resources with the same key are summarized once, see {@link Strategy}.
+ * Keys are made for Conditions, AllergyIntolerances, Immunizations and Procedures.
+ */
+final class ClinicalItemKey {
+
+    /**
+     * How the resources of the same clinical item are recognized, set with {@code mhr.ps.dedupe.key}.
+     */
+    enum Strategy {
+        /** Every resource is summarized. */
+        NONE,
+        /** Resources with the same business identifier are the same item. */
+        IDENTIFIER,
+        /** Resources with the same business identifier, or else with the same codes and onset or date, are the same item. */
+        CONTENT;
+
+        static Strategy fromProperty(String value) {
+            for (Strategy strategy : values()) {
+                if (strategy.name().equalsIgnoreCase(value.trim())) {
+                    return strategy;
+                }
+            }
+            throw new IllegalArgumentException("Unknown mhr.ps.dedupe.key '" + value + "', expected none, identifier or content.");
+        }
+    }
+
+    private ClinicalItemKey() {
+    }
+
+    /**
+     * @return The key of the clinical item the resource records, or null if the resource is not deduplicated.
+     */
+    static String of(Resource resource, Strategy strategy) {
+        if (strategy == Strategy.NONE) return null;
+
+        String identifierKey = identifierKey(resource);
+        if (identifierKey != null || strategy == Strategy.IDENTIFIER) {
+            return identifierKey;
+        }
+        return contentKey(resource);
+    }
+
+    private static String identifierKey(Resource resource) {
+        List<Identifier> identifiers;
+        if (resource instanceof Condition) {
+            identifiers = ((Condition) resource).getIdentifier();
+        } else if (resource instanceof AllergyIntolerance) {
+            identifiers = ((AllergyIntolerance) resource).getIdentifier();
+        } else if (resource instanceof Immunization) {
+            identifiers = ((Immunization) resource).getIdentifier();
+        } else if (resource instanceof Procedure) {
+            identifiers = ((Procedure) resource).getIdentifier();
+        } else {
+            return null;
+        }
+
+        for (Identifier identifier : identifiers) {
+            if (identifier.hasSystem() && identifier.hasValue()) {
+                return resource.fhirType() + "|" + identifier.getSystem() + "|" + identifier.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Hashes the codes and the onset or date of a resource. Resources without a code, or with an onset or date
+     * of a type without a key, are not deduplicated.
+     */
+    private static String contentKey(Resource resource) {
+        CodeableConcept code;
+        Type date;
+        if (resource instanceof Condition) {
+            code = ((Condition) resource).getCode();
+            date = ((Condition) resource).getOnset();
+        } else if (resource instanceof AllergyIntolerance) {
+            code = ((AllergyIntolerance) resource).getCode();
+            date = ((AllergyIntolerance) resource).getOnset();
+        } else if (resource instanceof Immunization) {
+            code = ((Immunization) resource).getVaccineCode();
+            date = ((Immunization) resource).getOccurrence();
+        } else if (resource instanceof Procedure) {
+            code = ((Procedure) resource).getCode();
+            date = ((Procedure) resource).getPerformed();
+        } else {
+            return null;
+        }
+
+        // the order of the codings does not matter
+        TreeSet<String> codes = new TreeSet<>();
+        for (Coding coding : code.getCoding()) {
+            if (coding.hasCode()) {
+                codes.add(coding.getSystem() + "|" + coding.getCode());
+            }
+        }
+        if (codes.isEmpty() && code.hasText()) {
+            codes.add(code.getText().trim().toLowerCase(Locale.ROOT));
+        }
+        if (codes.isEmpty()) return null;
+
+        String dateValue = dateKey(date);
+        if (dateValue == null) return null;
+        String content = resource.fhirType() + "\n" + String.join("\n", codes) + "\n" + dateValue;
+        return resource.fhirType() + "#" + UUID.nameUUIDFromBytes(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return The key of an onset or date: its value for a dateTime or string, the bounds of a Period or Range,
+     *     or the value and unit of an Age; empty if there is none, or null for other types.
+     */
+    private static String dateKey(Type date) {
+        if (date == null || date.isEmpty()) return "";
+        if (date.isPrimitive()) return date.primitiveValue();
+        if (date instanceof Period) {
+            Period period = (Period) date;
+            return "period:" + period.getStartElement().getValueAsString() + "/" + period.getEndElement().getValueAsString();
+        }
+        if (date instanceof Range) {
+            Range range = (Range) date;
+            return "range:" + quantityKey(range.getLow()) + "/" + quantityKey(range.getHigh());
+        }
+        if (date instanceof Quantity) {
+            // Age
+            return "age:" + quantityKey((Quantity) date);
+        }
+        return null;
+    }
+
+    private static String quantityKey(Quantity quantity) {
+        if (quantity == null || quantity.isEmpty()) return "";
+        String value = quantity.hasValue() ? quantity.getValue().stripTrailingZeros().toPlainString() : "";
+        String unit = quantity.hasCode() ? quantity.getSystem() + "|" + quantity.getCode() : quantity.getUnit();
+        return value + " " + unit;
+    }
+}
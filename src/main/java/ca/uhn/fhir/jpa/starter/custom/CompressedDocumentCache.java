@@ -0,0 +1,269 @@
+package ca.uhn.fhir.jpa.starter.custom;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+
+/**
+ * Cache of patient document Bundles held as deflate-compressed JSON in byte arrays on the Java heap, a fraction
+ * of the size of the parsed Bundles. Documents are keyed by resource id and version and evicted least recently
+ * used first once the byte budget is exceeded; an evicted document is freed by the garbage collector once no
+ * request still reads it. Documents are only parsed again when they are read. The {@link DocumentVersion} of each document is
+ * kept on the heap, so superseded documents can be skipped without parsing them.
+ * For each patient (IHI) the keys of their documents are kept as well, so the documents of a patient can be
+ * read without searching the database as long as all of them are cached. The keys of a patient expire after a
+ * time to live, as documents stored on another node or without the storage hooks are not seen here; callers
+ * also check them against the documents in the database before using them.
+ */
+@Component
+@Interceptor
+public class CompressedDocumentCache implements InitializingBean {
+
+    @Autowired
+    private IInterceptorService interceptorService;
+
+    @Autowired
+    private FhirContext fhirContext;
+
+    // total size of the compressed documents, 0 disables the cache
+    @Value("${mhr.ps.document-cache.max-bytes:67108864}")
+    private long maxBytes;
+
+    // maximum number of patients whose document keys are kept
+    @Value("${mhr.ps.document-cache.max-patients:10000}")
+    private int maxPatients;
+
+    // the document keys of a patient are searched again after this time
+    @Value("${mhr.ps.document-cache.ttl-seconds:300}")
+    private long ttlSeconds;
+
+    private final Map<String, CachedDocument> documents = new LinkedHashMap<>(16, 0.75f, true);
+    private long usedBytes = 0;
+
+    private final Map<String, DocumentSet> documentSets = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, DocumentSet> eldest) {
+            return size() > maxPatients;
+        }
+    };
+
+    @Override
+    public void afterPropertiesSet() {
+        interceptorService.registerInterceptor(this);
+    }
+
+    boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * Returns the compressed documents of a patient, in the order they were retrieved.
+     * The documents stay readable after they are evicted, so the caller can decode them one batch at a time.
+     *
+     * @return The documents, or null if the document set of the patient is unknown, expired or not fully cached.
+     */
+    synchronized List<CachedDocument> getDocuments(String ihi) {
+        DocumentSet documentSet = documentSets.get(ihi);
+        if (documentSet == null || documentSet.keys == null) return null;
+        if (System.currentTimeMillis() > documentSet.expiresMillis) {
+            documentSets.remove(ihi);
+            return null;
+        }
+
+        List<CachedDocument> cachedDocuments = new ArrayList<>(documentSet.keys.size());
+        for (String key : documentSet.keys) {
+            CachedDocument cachedDocument = documents.get(key);
+            if (cachedDocument == null) {
+                documentSets.remove(ihi);
+                return null;
+            }
+            cachedDocuments.add(cachedDocument);
+        }
+        return cachedDocuments;
+    }
+
+    /**
+     * Parses a compressed document returned by {@link #getDocuments(String)}.
+     */
+    Bundle decode(CachedDocument cachedDocument) {
+        try (Reader reader = new InputStreamReader(
+                new InflaterInputStream(new ByteArrayInputStream(cachedDocument.compressed)), StandardCharsets.UTF_8)) {
+            return fhirContext.newJsonParser().parseResource(Bundle.class, reader);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read cached document", e);
+        }
+    }
+
+    /**
+     * Reserves the document set of a patient before their documents are loaded from the database, so
+     * documents stored while loading are not missed.
+     *
+     * @return The version to pass to {@link #completeDocumentSet(String, long, List)}.
+     */
+    synchronized long reserve(String ihi) {
+        return documentSets.computeIfAbsent(ihi, k -> new DocumentSet()).version;
+    }
+
+    /**
+     * Compresses and caches a document.
+     *
+     * @return The key of the document, or null if it is too large for the cache.
+     */
+    String putDocument(Bundle document) {
+        String key = keyOf(document);
+        synchronized (this) {
+            if (documents.containsKey(key)) return key;
+        }
+
+        byte[] compressed = compress(fhirContext.newJsonParser().encodeResourceToString(document));
+        if (compressed.length > maxBytes) return null;
+
+        CachedDocument cachedDocument = new CachedDocument(compressed, DocumentVersion.of(document));
+        synchronized (this) {
+            CachedDocument previous = documents.put(key, cachedDocument);
+            if (previous != null) {
+                usedBytes -= previous.compressed.length;
+            }
+            usedBytes += compressed.length;
+            Iterator<CachedDocument> eldest = documents.values().iterator();
+            while (usedBytes > maxBytes && eldest.hasNext()) {
+                usedBytes -= eldest.next().compressed.length;
+                eldest.remove();
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Keeps the document keys of a patient, unless a document of the patient was stored or changed since
+     * {@link #reserve(String)}, or one of the documents could not be cached.
+     */
+    synchronized void completeDocumentSet(String ihi, long version, List<String> keys) {
+        DocumentSet documentSet = documentSets.get(ihi);
+        if (documentSet != null && documentSet.version == version && !keys.contains(null)) {
+            documentSet.keys = new ArrayList<>(keys);
+            documentSet.expiresMillis = System.currentTimeMillis() + ttlSeconds * 1000;
+        }
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+    public void resourceCreated(IBaseResource resource) {
+        String ihi = PatientDocumentStateCache.findSubjectIhi(resource);
+        if (ihi != null) {
+            Bundle document = ((Bundle) resource).copy();
+            PatientDocumentStateCache.afterCommit(() -> documentStored(ihi, document));
+        }
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+    public void resourceUpdated(IBaseResource oldResource, IBaseResource newResource) {
+        String oldIhi = PatientDocumentStateCache.findSubjectIhi(oldResource);
+        String newIhi = PatientDocumentStateCache.findSubjectIhi(newResource);
+        PatientDocumentStateCache.afterCommit(() -> {
+            invalidate(oldIhi);
+            invalidate(newIhi);
+        });
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+    public void resourceDeleted(IBaseResource resource) {
+        String ihi = PatientDocumentStateCache.findSubjectIhi(resource);
+        PatientDocumentStateCache.afterCommit(() -> invalidate(ihi));
+    }
+
+    private void documentStored(String ihi, Bundle document) {
+        synchronized (this) {
+            DocumentSet documentSet = documentSets.get(ihi);
+            if (documentSet == null) return;
+            documentSet.version++;
+            if (documentSet.keys == null) return;
+        }
+
+        String key = putDocument(document);
+        synchronized (this) {
+            DocumentSet documentSet = documentSets.get(ihi);
+            if (documentSet == null || documentSet.keys == null) return;
+            if (key != null) {
+                documentSet.keys.add(key);
+            } else {
+                documentSets.remove(ihi);
+            }
+        }
+    }
+
+    /**
+     * Drops the document keys of a patient, such as keys found to miss documents of the patient.
+     */
+    synchronized void invalidate(String ihi) {
+        if (ihi != null) {
+            documentSets.remove(ihi);
+        }
+    }
+
+    private static String keyOf(Bundle document) {
+        return document.getIdElement().getIdPart() + "/" + document.getIdElement().getVersionIdPart();
+    }
+
+    private static byte[] compress(String json) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(json.getBytes(StandardCharsets.UTF_8));
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(json.length() / 4 + 64);
+            byte[] chunk = new byte[8192];
+            while (!deflater.finished()) {
+                int length = deflater.deflate(chunk);
+                out.write(chunk, 0, length);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * A compressed document and the identity of its version. The compressed bytes are never changed.
+     */
+    static class CachedDocument {
+        private final byte[] compressed;
+        private final DocumentVersion version;
+
+        private CachedDocument(byte[] compressed, DocumentVersion version) {
+            this.compressed = compressed;
+            this.version = version;
+        }
+
+        DocumentVersion getVersion() {
+            return version;
+        }
+    }
+
+    private static class DocumentSet {
+        private long version = 0;
+        private List<String> keys;
+        private long expiresMillis;
+    }
+}
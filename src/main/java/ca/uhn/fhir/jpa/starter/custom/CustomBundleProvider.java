@@ -0,0 +1,2485 @@
+package ca.uhn.fhir.jpa.starter.custom;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.Date;
+
+import org.hl7.fhir.instance.model.api.IAnyResource;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.AllergyIntolerance;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Composition;
+import org.hl7.fhir.r4.model.ContactPoint.ContactPointSystem;
+import org.hl7.fhir.r4.model.ContactPoint.ContactPointUse;
+import org.hl7.fhir.r4.model.Device;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Immunization;
+import org.hl7.fhir.r4.model.Medication;
+import org.hl7.fhir.r4.model.MedicationAdministration;
+import org.hl7.fhir.r4.model.MedicationDispense;
+import org.hl7.fhir.r4.model.MedicationRequest;
+import org.hl7.fhir.r4.model.MedicationStatement;
+import org.hl7.fhir.r4.model.Meta;
+import org.hl7.fhir.r4.model.Narrative;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Practitioner;
+import org.hl7.fhir.r4.model.Procedure;
+import org.hl7.fhir.r4.model.Provenance;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.RelatedPerson;
+import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.hl7.fhir.r4.model.Composition.SectionComponent;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Device.DeviceDeviceNameComponent;
+import org.hl7.fhir.r4.model.Goal;
+import org.hl7.fhir.r4.model.Group;
+import org.hl7.fhir.r4.model.IdType;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDaoPatient;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.annotation.Count;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.annotation.OptionalParam;
+import ca.uhn.fhir.rest.annotation.RequiredParam;
+import ca.uhn.fhir.rest.annotation.Search;
+import ca.uhn.fhir.rest.annotation.Sort;
+import ca.uhn.fhir.model.api.ResourceMetadataKeyEnum;
+import ca.uhn.fhir.model.valueset.BundleEntrySearchModeEnum;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.api.SortOrderEnum;
+import ca.uhn.fhir.rest.api.SortSpec;
+import ca.uhn.fhir.rest.api.SummaryEnum;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.param.CompositeOrListParam;
+import ca.uhn.fhir.rest.param.CompositeParam;
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.TokenOrListParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.param.TokenParamModifier;
+import ca.uhn.fhir.rest.server.IResourceProvider;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.NotImplementedOperationException;
+import ca.uhn.fhir.rest.server.exceptions.NotModifiedException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+
+@Component
+public class CustomBundleProvider implements IResourceProvider, InitializingBean {
+
+    private static final String excludedSystem = "http://myportal.org";
+
+    static final String IHI_SYSTEM = "http://ns.electronichealth.net.au/id/hi/ihi/1.0";
+
+    // Patients loaded for an IHI, a second one means the IHI is shared
+    private static final int IHI_MATCH_LIMIT = 2;
+
+    // the resource types read by the section generators, other entries are not kept once a document is indexed
+    private static final Set<ResourceType> SECTION_RESOURCE_TYPES = EnumSet.of(ResourceType.Condition,
+        ResourceType.AllergyIntolerance, ResourceType.MedicationStatement, ResourceType.MedicationRequest,
+        ResourceType.MedicationDispense, ResourceType.MedicationAdministration, ResourceType.Immunization,
+        ResourceType.Procedure, ResourceType.Goal, ResourceType.Composition);
+
+    private static final ZoneId SYDNEY_ZONE = ZoneId.of("Australia/Sydney");
+    private static final DateTimeFormatter SUMMARY_TITLE_FORMATTER = DateTimeFormatter.ofPattern("dd-MMMM-yyyy hh:mm a z")
+        .withZone(SYDNEY_ZONE);
+    private static final DateTimeFormatter ETAG_DAY_FORMATTER = DateTimeFormatter.ISO_LOCAL_DATE.withZone(SYDNEY_ZONE);
+
+    // narrative table headers of the sections
+    private static final NarrativeBuilder.TableTemplate ALLERGIES_TABLE = new NarrativeBuilder.TableTemplate(
+        "Allergy", "Clinical Status", "Verification Status", "Onset");
+    private static final NarrativeBuilder.TableTemplate PROBLEMS_TABLE = new NarrativeBuilder.TableTemplate(
+        "Condition", "Clinical Status", "Verification Status", "Onset");
+    private static final NarrativeBuilder.TableTemplate MEDICATIONS_TABLE = new NarrativeBuilder.TableTemplate(
+        "Type", "Medication", "Status", "Effective/Date", "Dosage");
+    private static final NarrativeBuilder.TableTemplate IMMUNIZATIONS_TABLE = new NarrativeBuilder.TableTemplate(
+        "Vaccine Code", "Occurrence Date");
+    private static final NarrativeBuilder.TableTemplate PROCEDURES_TABLE = new NarrativeBuilder.TableTemplate(
+        "Procedure Code", "Performed Date", "Status");
+
+    private static final String IDENTIFIER_INDEX_KEY = CustomBundleProvider.class.getName() + ".identifierIndex";
+    private static final String PROVENANCE_TEMPLATES_KEY = CustomBundleProvider.class.getName() + ".provenanceTemplates";
+    private static final String ADDED_MEDICATIONS_KEY = CustomBundleProvider.class.getName() + ".addedMedications";
+    private static final String PROVENANCES_KEY = CustomBundleProvider.class.getName() + ".provenances";
+    private static final String CLINICAL_ITEMS_KEY = CustomBundleProvider.class.getName() + ".clinicalItems";
+    private static final String STATISTICS_KEY = CustomBundleProvider.class.getName() + ".statistics";
+
+    private static final String SERVER_TIMING_HEADER = "Server-Timing";
+
+    @Autowired
+    private IFhirResourceDaoPatient<Patient> patientDao;
+
+    @Autowired
+    private IFhirResourceDao<Bundle> bundleDao;
+
+    @Autowired
+    private PatientSummaryCache patientSummaryCache;
+
+    @Autowired
+    private PatientDocumentStateCache patientDocumentStateCache;
+
+    @Autowired
+    private CompressedDocumentCache documentCache;
+
+    // number of documents fetched from the database at a time
+    @Value("${mhr.ps.document-batch-size:100}")
+    private int documentBatchSize;
+
+    @Autowired
+    private IFhirResourceDao<Group> groupDao;
+
+    @Autowired
+    private PatientSummaryExportService exportService;
+
+    @Autowired
+    private PatientMatchCache patientMatchCache;
+
+    @Autowired
+    private PatientSummaryMetrics summaryMetrics;
+
+    // how the same clinical item recorded in several documents is recognized: none (default), identifier or content
+    @Value("${mhr.ps.dedupe.key:none}")
+    private String dedupeKey;
+
+    private ClinicalItemKey.Strategy dedupeStrategy;
+
+    // time a summary request may take before its remaining optional sections are skipped, 0 for no deadline
+    @Value("${mhr.ps.request-deadline-ms:0}")
+    private long requestDeadlineMillis;
+
+    @Override
+    public void afterPropertiesSet() {
+        dedupeStrategy = ClinicalItemKey.Strategy.fromProperty(dedupeKey);
+        // continue the exports that were running when the server stopped
+        exportService.resumeJobs(this::generateExportSummaries);
+    }
+
+    @Override
+    public Class<Bundle> getResourceType() {
+        return Bundle.class;
+    }
+
+
+    /**
+     * Finds content of a patient by the LOINC code of the content. A Patient Summary (60591-5) is generated
+     * from the documents of the patient, any other code lists the stored documents of that type, see
+     * {@link #discoverDocuments}.
+     */
+    @Search(queryName = "findContentByPatient")
+    public IBundleProvider discoverContentByPatient(
+        @RequiredParam(name = "patient.identifier") TokenParam patientIdentifier,
+        @RequiredParam(name = "patient.birthdate") DateParam patientBirthdate,
+        @RequiredParam(name = "patient.family") StringParam patientFamily,
+        @RequiredParam(name = "patient.gender") TokenParam patientGender,
+        @RequiredParam(name = "content-code") TokenParam contentCode,
+        @OptionalParam(
+            name = "section-lookback",
+            compositeTypes = {TokenParam.class, DateParam.class})
+            CompositeOrListParam<TokenParam, DateParam> sectionsWithLookback,
+        @OptionalParam(name = "_narrative") TokenParam narrative,
+        @OptionalParam(name = "_cost") TokenParam cost,
+        @Count Integer count,
+        @Sort SortSpec sort,
+        RequestDetails requestDetails) {
+                
+        List<IBaseResource> retVal = new ArrayList<>();
+        NarrativeBuilder.Mode narrativeMode = NarrativeBuilder.Mode.fromParameter(narrative);
+        SummaryStatistics statistics = new SummaryStatistics();
+        RequestDeadline deadline = RequestDeadline.after(requestDeadlineMillis);
+
+        // Create a List to hold key-value pairs of sectionCode and lookbackDate
+        List<Map.Entry<TokenParam, DateParam>> sectionLookbacks = getSectionLookbacks(sectionsWithLookback);
+
+        // validate patient identity
+        long patientMatchStart = System.nanoTime();
+        List<Patient> patientResources = searchPatient(patientIdentifier, patientBirthdate, patientFamily,
+        patientGender, requestDetails);
+        statistics.addStage(SummaryStatistics.PATIENT_MATCH, patientMatchStart);
+
+        if (patientResources.isEmpty()) {
+            // Handle case where no patient is found
+            summaryMetrics.record(contentCode.getValue(), statistics, null);
+            return new SimpleBundleProvider();
+        } else if (patientResources.size() > 1) {
+            // Create an operation outcome with error for multiple patients
+            OperationOutcome operationOutcome = (generateOperationOutcome(OperationOutcome.IssueSeverity.ERROR,
+                    OperationOutcome.IssueType.PROCESSING, "Multiple patients found with the given criteria."));           
+            retVal.add(operationOutcome);
+            summaryMetrics.record(contentCode.getValue(), statistics, null);
+            return new SimpleBundleProvider(retVal);
+        }
+
+        Patient currPatient = patientResources.get(0);
+
+        // check if contentType is for Patient Summary
+        if (contentCode.getSystem().equals("http://loinc.org") && 
+            contentCode.getValue().equals("60591-5")) {
+            // Reuse a cached summary of the patient if nothing was stored for them since
+            // (deferred narratives are not kept when a summary is copied, so those summaries are not cached)
+            String ihi = getIhi(currPatient);
+            String cacheKey = ihi != null && narrativeMode != NarrativeBuilder.Mode.DEFERRED
+                ? patientSummaryCache.createKey(ihi, contentCode, sectionLookbacks, narrativeMode) : null;
+            String patientVersion = currPatient.getIdElement().getVersionIdPart();
+            PatientDocumentCount documentCount = countDocuments(currPatient, requestDetails);
+            PatientSummaryCache.CachedSummary cachedSummary = cacheKey != null ? patientSummaryCache.get(cacheKey) : null;
+            String etag = null;
+            Bundle patientSummaryBundle = null;
+            // a summary of other documents than those stored now is neither served nor answered with 304
+            if (cachedSummary != null && cachedSummary.isCurrent(patientVersion, documentCount.get())) {
+                etag = cachedSummary.getETag();
+                checkNotModified(etag, requestDetails);
+                patientSummaryBundle = cachedSummary.copySummary();
+                refreshSummary(patientSummaryBundle);
+            } else {
+                // the ETag only depends on the documents and the request, answer a matching one before generating
+                long cacheVersion = patientSummaryCache.reserve();
+                // counted before the documents are read, so a document stored meanwhile invalidates the summary
+                int cachedDocumentCount = cacheKey != null ? documentCount.get() : -1;
+                long documentFetchStart = System.nanoTime();
+                PatientDocumentIndex documentIndex = loadDocumentIndex(currPatient, sectionLookbacks, documentCount,
+                    requestDetails);
+                statistics.addStage(SummaryStatistics.DOCUMENT_FETCH, documentFetchStart);
+                statistics.setDocumentsLoaded(documentIndex.getDocumentCount());
+                etag = createETag(currPatient, contentCode, sectionLookbacks, narrativeMode, documentIndex);
+                checkNotModified(etag, requestDetails);
+
+                // Create a Patient Summary Bundle
+                patientSummaryBundle = generateMHRPS(currPatient, sectionLookbacks, narrativeMode, documentIndex, statistics,
+                    deadline);
+                if (!statistics.getSkippedSections().isEmpty()) {
+                    // a partial summary is neither cached nor identified by the ETag of the full summary
+                    etag = null;
+                } else if (cacheKey != null) {
+                    patientSummaryCache.put(cacheKey, ihi, patientSummaryBundle, etag, patientVersion,
+                        cachedDocumentCount, cacheVersion);
+                }
+            }
+            if (etag != null && requestDetails != null && requestDetails.getResponse() != null) {
+                requestDetails.getResponse().addHeader(Constants.HEADER_ETAG, etag);
+            }
+            retVal.add(patientSummaryBundle);
+            if (!statistics.getSkippedSections().isEmpty()) {
+                OperationOutcome partialSummary = generateOperationOutcome(OperationOutcome.IssueSeverity.INFORMATION,
+                    OperationOutcome.IssueType.INCOMPLETE, "The summary is partial, the request exceeded its deadline of "
+                        + deadline.getBudgetMillis() + " ms. Sections not generated: "
+                        + String.join(", ", statistics.getSkippedSections()) + ".");
+                ResourceMetadataKeyEnum.ENTRY_SEARCH_MODE.put(partialSummary, BundleEntrySearchModeEnum.OUTCOME);
+                retVal.add(partialSummary);
+            }
+            summaryMetrics.record(contentCode.getValue(), statistics, requestDetails);
+            if (cost != null && "true".equalsIgnoreCase(cost.getValue())) {
+                addCostReport(retVal, statistics, requestDetails);
+            }
+        } else {
+            // Handle other content types by searching the stored documents
+            return discoverDocuments(currPatient, contentCode, count, sort, requestDetails);
+        }
+
+
+        return new SimpleBundleProvider(retVal);
+    }
+
+    /**
+     * Searches the stored documents of a patient whose Composition has the given type, such as discharge or
+     * event summaries. The search runs on the indexed Composition type and patient IHI of the documents, leaving
+     * out the excluded documents, and its results are kept by the server's paging provider: a page of documents
+     * is loaded when it is requested, so a patient with many documents is not read in full to list a few.
+     * The documents are sorted newest first unless {@code _sort} is given.
+     *
+     * @param contentCode The type of the documents, matched against {@code Composition.type}.
+     * @param count The page size, or null for the server default.
+     * @param sort The requested sort order, or null.
+     * @return The documents, empty if the patient has no IHI.
+     */
+    private IBundleProvider discoverDocuments(Patient patient, TokenParam contentCode, Integer count, SortSpec sort,
+            RequestDetails requestDetails) {
+        String ihiValue = getIhi(patient);
+        if (ihiValue == null) {
+            // the documents are found by the IHI of the patient
+            return new SimpleBundleProvider();
+        }
+
+        SearchParameterMap documentParams = new SearchParameterMap();
+        documentParams.add(Bundle.SP_TYPE, new TokenParam("document"));
+        documentParams.add("composition.type", new TokenParam(contentCode.getSystem(), contentCode.getValue()));
+        documentParams.add("composition.patient.identifier", new TokenParam(IHI_SYSTEM, ihiValue));
+        documentParams.add(Bundle.SP_IDENTIFIER, new TokenParam(excludedSystem, null).setModifier(TokenParamModifier.NOT));
+        documentParams.setCount(count);
+        documentParams.setSort(sort != null ? sort : new SortSpec(Bundle.SP_TIMESTAMP, SortOrderEnum.DESC));
+        return bundleDao.search(documentParams, requestDetails);
+    }
+
+    
+
+    /**
+     * Streams the MHR Patient Summary of a patient as JSON. The summary is generated once, as for the search, and
+     * its entries are then encoded and written one at a time, releasing each once it is written, so the summary
+     * is never held as a whole in text and the encoded entries do not stay in memory with their resources.
+     * The response starts once the sections are generated: the Composition is the first entry of a document
+     * Bundle and holds the references of every section, so it cannot be written before them.
+     *
+     * @param sectionsWithLookback The optional sections, with the syntax of the section-lookback search
+     *     parameter, {@code system|code$[prefix]date}.
+     * @param narrative How narratives are generated, deferred narratives are generated in full.
+     */
+    @Operation(name = "$stream-patient-summary", idempotent = true, manualResponse = true)
+    public void streamPatientSummary(
+        @OperationParam(name = "patient.identifier", min = 1, max = 1) TokenParam patientIdentifier,
+        @OperationParam(name = "patient.birthdate", min = 1, max = 1) DateParam patientBirthdate,
+        @OperationParam(name = "patient.family", min = 1, max = 1) StringParam patientFamily,
+        @OperationParam(name = "patient.gender", min = 1, max = 1) TokenParam patientGender,
+        @OperationParam(name = "section-lookback", max = OperationParam.MAX_UNLIMITED) List<StringType> sectionsWithLookback,
+        @OperationParam(name = "_narrative", max = 1) TokenParam narrative,
+        RequestDetails requestDetails) throws IOException {
+
+        ServletRequestDetails servletRequestDetails = getServletRequestDetails(requestDetails);
+        CompositeOrListParam<TokenParam, DateParam> lookbackParams = new CompositeOrListParam<>(TokenParam.class,
+            DateParam.class);
+        if (sectionsWithLookback != null) {
+            for (StringType sectionWithLookback : sectionsWithLookback) {
+                CompositeParam<TokenParam, DateParam> lookbackParam = new CompositeParam<>(TokenParam.class,
+                    DateParam.class);
+                lookbackParam.setValueAsQueryToken(requestDetails.getFhirContext(), "section-lookback", null,
+                    sectionWithLookback.getValue());
+                lookbackParams.addOr(lookbackParam);
+            }
+        }
+        List<Map.Entry<TokenParam, DateParam>> sectionLookbacks = getSectionLookbacks(lookbackParams);
+        NarrativeBuilder.Mode narrativeMode = NarrativeBuilder.Mode.fromParameter(narrative);
+        if (narrativeMode == NarrativeBuilder.Mode.DEFERRED) {
+            // deferred narratives are generated when the response is serialized by the server, which is bypassed here
+            narrativeMode = NarrativeBuilder.Mode.FULL;
+        }
+
+        // validate patient identity
+        SummaryStatistics statistics = new SummaryStatistics();
+        RequestDeadline deadline = RequestDeadline.after(requestDeadlineMillis);
+        long patientMatchStart = System.nanoTime();
+        List<Patient> patientResources = searchPatient(patientIdentifier, patientBirthdate, patientFamily,
+            patientGender, requestDetails);
+        statistics.addStage(SummaryStatistics.PATIENT_MATCH, patientMatchStart);
+        if (patientResources.isEmpty()) {
+            throw new ResourceNotFoundException("No patient found with the given criteria.");
+        } else if (patientResources.size() > 1) {
+            throw new InvalidRequestException("Multiple patients found with the given criteria.");
+        }
+        Patient patient = patientResources.get(0);
+
+        long documentFetchStart = System.nanoTime();
+        PatientDocumentIndex documentIndex = loadDocumentIndex(patient, sectionLookbacks,
+            countDocuments(patient, requestDetails), requestDetails);
+        statistics.addStage(SummaryStatistics.DOCUMENT_FETCH, documentFetchStart);
+        statistics.setDocumentsLoaded(documentIndex.getDocumentCount());
+        String etag = createETag(patient, new TokenParam("http://loinc.org", "60591-5"), sectionLookbacks, narrativeMode,
+            documentIndex);
+        checkNotModified(etag, requestDetails);
+
+        Bundle mhrPsBundle = generateMHRPS(patient, sectionLookbacks, narrativeMode, documentIndex, statistics,
+            deadline);
+
+        long serializationStart = System.nanoTime();
+        servletRequestDetails.getServletResponse().setStatus(200);
+        servletRequestDetails.getServletResponse().setContentType(Constants.CT_FHIR_JSON_NEW);
+        servletRequestDetails.getServletResponse().setCharacterEncoding(Constants.CHARSET_NAME_UTF8);
+        if (statistics.getSkippedSections().isEmpty()) {
+            // a partial summary is not identified by the ETag of the full summary
+            servletRequestDetails.getServletResponse().setHeader(Constants.HEADER_ETAG, etag);
+        }
+        StreamingBundleWriter bundleWriter = new StreamingBundleWriter(requestDetails.getFhirContext(),
+            servletRequestDetails.getServletResponse().getWriter());
+        bundleWriter.write(mhrPsBundle);
+        // serialization is part of the generation of a streamed summary
+        statistics.addStage(SummaryStatistics.GENERATION, serializationStart);
+        summaryMetrics.record("60591-5", statistics, null);
+        summaryMetrics.recordSize("60591-5", bundleWriter.getCharactersWritten());
+    }
+
+    /**
+     * Returns the section codes and lookback dates of the section-lookback parameter, in the order given.
+     * A section given without a date has a null lookback.
+     */
+    private static List<Map.Entry<TokenParam, DateParam>> getSectionLookbacks(
+            CompositeOrListParam<TokenParam, DateParam> sectionsWithLookback) {
+        List<Map.Entry<TokenParam, DateParam>> sectionLookbacks = new ArrayList<>();
+        if (sectionsWithLookback == null) return sectionLookbacks;
+        for (CompositeParam<TokenParam, DateParam> nextOr : sectionsWithLookback.getValuesAsQueryTokens()) {
+            TokenParam sectionCode = nextOr.getLeftValue();
+            DateParam lookbackDate = nextOr.getRightValue();
+            sectionLookbacks.add(new AbstractMap.SimpleEntry<>(sectionCode,
+                lookbackDate != null && !lookbackDate.isEmpty() ? lookbackDate : null));
+        }
+        return sectionLookbacks;
+    }
+
+    /**
+     * Returns the servlet request of an operation that writes its own response.
+     *
+     * @throws NotImplementedOperationException If the operation is not invoked over HTTP.
+     */
+    private static ServletRequestDetails getServletRequestDetails(RequestDetails requestDetails) {
+        if (!(requestDetails instanceof ServletRequestDetails)) {
+            throw new NotImplementedOperationException("The operation writes its own HTTP response, it is only "
+                + "available over HTTP.");
+        }
+        return (ServletRequestDetails) requestDetails;
+    }
+
+    /**
+     * Starts an asynchronous export of the patient summaries of a list of patients or of the members of a Group,
+     * in the style of the bulk data {@code $export} operation. The response is 202 Accepted with the status URL
+     * of the job in the Content-Location header, see {@link #exportPatientSummaryStatus}.
+     * The summaries hold the mandatory sections, and are written as NDJSON files served by
+     * {@link #exportPatientSummaryFile}.
+     * The patients are looked up with the request at kickoff, so the authorization and consent rules of the
+     * caller apply to them; the job is generated in the tenant of the request.
+     *
+     * @param patientIdentifiers The IHIs of the patients.
+     * @param group A Group whose Patient members are exported.
+     */
+    @Operation(name = "$export-patient-summary", manualResponse = true)
+    public void exportPatientSummary(
+        @OperationParam(name = "patient", max = OperationParam.MAX_UNLIMITED) List<Identifier> patientIdentifiers,
+        @OperationParam(name = "group", max = 1) Reference group,
+        RequestDetails requestDetails) throws IOException {
+
+        ServletRequestDetails servletRequestDetails = getServletRequestDetails(requestDetails);
+        Set<String> ihis = new LinkedHashSet<>();
+        if (patientIdentifiers != null) {
+            for (Identifier identifier : patientIdentifiers) {
+                if (!IHI_SYSTEM.equals(identifier.getSystem()) || !identifier.hasValue()) {
+                    throw new InvalidRequestException("Patients are identified by their IHI (" + IHI_SYSTEM + ").");
+                }
+                ihis.add(identifier.getValue());
+            }
+            checkExportPatients(ihis, requestDetails);
+        }
+        if (group != null && group.hasReference()) {
+            ihis.addAll(getGroupMemberIhis(new IdType(group.getReference()), requestDetails));
+        }
+        if (ihis.isEmpty()) {
+            throw new InvalidRequestException("No patients to export, provide patient IHIs or a Group.");
+        }
+
+        String jobId = exportService.start(new ArrayList<>(ihis), requestDetails.getTenantId(),
+            this::generateExportSummaries);
+
+        servletRequestDetails.getServletResponse().setStatus(202);
+        servletRequestDetails.getServletResponse().setHeader(Constants.HEADER_CONTENT_LOCATION,
+            requestDetails.getFhirServerBase() + "/Bundle/$export-patient-summary-status?_jobId=" + jobId);
+    }
+
+    /**
+     * Reports the progress of a patient summary export. The response is 202 Accepted with an X-Progress header
+     * while the job runs, and 200 OK with the bulk data style manifest of the NDJSON files once it completed.
+     * A DELETE cancels the job and deletes its files, the response is 202 Accepted.
+     */
+    @Operation(name = "$export-patient-summary-status", idempotent = true, deleteEnabled = true, manualResponse = true)
+    public void exportPatientSummaryStatus(
+        @OperationParam(name = "_jobId", min = 1, max = 1) StringType jobId,
+        RequestDetails requestDetails) throws IOException {
+
+        ServletRequestDetails servletRequestDetails = getServletRequestDetails(requestDetails);
+        PatientSummaryExportService.ExportJob job = getExportJob(jobId, requestDetails);
+
+        if (requestDetails.getRequestType() == RequestTypeEnum.DELETE) {
+            exportService.delete(job.getJobId());
+            servletRequestDetails.getServletResponse().setStatus(202);
+            return;
+        }
+        if (!job.isFinished()) {
+            servletRequestDetails.getServletResponse().setStatus(202);
+            servletRequestDetails.getServletResponse().setHeader("X-Progress", String.format(Locale.ROOT,
+                "%d of %d patients processed, %d failed, %.1f patients/s", job.getProcessedPatients(),
+                job.getTotalPatients(), job.getFailedPatients(), job.getPatientsPerSecond()));
+            servletRequestDetails.getServletResponse().setHeader(Constants.HEADER_RETRY_AFTER, "10");
+            return;
+        }
+        if (!job.isComplete()) {
+            throw new InternalErrorException("Patient summary export " + job.getJobId() + " failed: "
+                + String.join("; ", job.getBatchErrors()));
+        }
+
+        StringBuilder manifest = new StringBuilder()
+            .append("{\"transactionTime\":\"").append(job.getTransactionTime()).append('"')
+            .append(",\"request\":\"").append(requestDetails.getFhirServerBase()).append("/Bundle/$export-patient-summary\"")
+            .append(",\"requiresAccessToken\":true")
+            .append(",\"patientsPerSecond\":").append(String.format(Locale.ROOT, "%.1f", job.getPatientsPerSecond()))
+            .append(",\"output\":[");
+        appendManifestFiles(manifest, "Bundle", job, job.getSummaryFiles(), requestDetails);
+        manifest.append("],\"error\":[");
+        appendManifestFiles(manifest, "OperationOutcome", job, job.getErrorFiles(), requestDetails);
+        manifest.append("]}");
+
+        servletRequestDetails.getServletResponse().setStatus(200);
+        servletRequestDetails.getServletResponse().setContentType(Constants.CT_JSON);
+        servletRequestDetails.getServletResponse().setCharacterEncoding(Constants.CHARSET_NAME_UTF8);
+        servletRequestDetails.getServletResponse().getWriter().write(manifest.toString());
+    }
+
+    private void appendManifestFiles(StringBuilder manifest, String type, PatientSummaryExportService.ExportJob job,
+            List<Path> files, RequestDetails requestDetails) {
+        for (int i = 0; i < files.size(); i++) {
+            if (i > 0) {
+                manifest.append(',');
+            }
+            // job ids are UUIDs and file names are generated, they hold no characters that need escaping
+            String url = requestDetails.getFhirServerBase() + "/Bundle/$export-patient-summary-file?_jobId="
+                + job.getJobId() + "&_file=" + files.get(i).getFileName();
+            manifest.append("{\"type\":\"").append(type).append("\",\"url\":\"").append(url).append("\"}");
+        }
+    }
+
+    /**
+     * Serves an output file of a patient summary export, as listed in the manifest of the job.
+     */
+    @Operation(name = "$export-patient-summary-file", idempotent = true, manualResponse = true)
+    public void exportPatientSummaryFile(
+        @OperationParam(name = "_jobId", min = 1, max = 1) StringType jobId,
+        @OperationParam(name = "_file", min = 1, max = 1) StringType fileName,
+        RequestDetails requestDetails) throws IOException {
+
+        ServletRequestDetails servletRequestDetails = getServletRequestDetails(requestDetails);
+        PatientSummaryExportService.ExportJob job = getExportJob(jobId, requestDetails);
+        // only the files written by the job are served, the name is not resolved as a path
+        Path file = job.getOutputFile(fileName.getValue());
+        if (file == null) {
+            throw new ResourceNotFoundException("Unknown file " + fileName.getValue() + " of patient summary export "
+                + job.getJobId() + ".");
+        }
+
+        servletRequestDetails.getServletResponse().setStatus(200);
+        servletRequestDetails.getServletResponse().setContentType(Constants.CT_FHIR_NDJSON);
+        servletRequestDetails.getServletResponse().setCharacterEncoding(Constants.CHARSET_NAME_UTF8);
+        Files.copy(file, servletRequestDetails.getServletResponse().getOutputStream());
+    }
+
+    /**
+     * Finds an export job started in the tenant of the request.
+     *
+     * @throws ResourceNotFoundException If there is no such job.
+     */
+    private PatientSummaryExportService.ExportJob getExportJob(StringType jobId, RequestDetails requestDetails) {
+        PatientSummaryExportService.ExportJob job = exportService.getJob(jobId.getValue());
+        if (job == null || !Objects.equals(job.getTenantId(), requestDetails.getTenantId())) {
+            throw new ResourceNotFoundException("Unknown patient summary export " + jobId.getValue() + ".");
+        }
+        return job;
+    }
+
+    /**
+     * Checks that the caller can read the Patient of every IHI to export. The Patients are searched with the
+     * request, so the authorization and consent rules of the caller apply, in batches of
+     * {@code documentBatchSize} IHIs.
+     *
+     * @throws ResourceNotFoundException If no Patient is found for some of the IHIs.
+     */
+    private void checkExportPatients(Set<String> ihis, RequestDetails requestDetails) {
+        Set<String> missingIhis = new LinkedHashSet<>(ihis);
+        List<String> ihiList = new ArrayList<>(ihis);
+        for (int fromIndex = 0; fromIndex < ihiList.size(); fromIndex += documentBatchSize) {
+            TokenOrListParam identifiers = new TokenOrListParam();
+            for (String ihi : ihiList.subList(fromIndex, Math.min(fromIndex + documentBatchSize, ihiList.size()))) {
+                identifiers.addOr(new TokenParam(IHI_SYSTEM, ihi));
+            }
+            SearchParameterMap patientParams = new SearchParameterMap();
+            patientParams.add(Patient.SP_IDENTIFIER, identifiers);
+            for (Patient patient : patientDao.searchForResources(patientParams, requestDetails)) {
+                missingIhis.remove(getIhi(patient));
+            }
+        }
+        if (!missingIhis.isEmpty()) {
+            List<String> reported = new ArrayList<>(missingIhis).subList(0, Math.min(missingIhis.size(), 10));
+            throw new ResourceNotFoundException("No patient found with IHI " + String.join(", ", reported)
+                + (missingIhis.size() > reported.size() ? " and " + (missingIhis.size() - reported.size()) + " more" : "")
+                + ".");
+        }
+    }
+
+    /**
+     * Finds the IHIs of the Patient members of a Group, reading the members in one search.
+     */
+    private List<String> getGroupMemberIhis(IdType groupId, RequestDetails requestDetails) {
+        Group groupResource = groupDao.read(groupId, requestDetails);
+        TokenOrListParam memberIds = new TokenOrListParam();
+        for (Group.GroupMemberComponent member : groupResource.getMember()) {
+            IdType memberId = new IdType(member.getEntity().getReference());
+            if ("Patient".equals(memberId.getResourceType()) && memberId.hasIdPart()) {
+                memberIds.addOr(new TokenParam(memberId.getIdPart()));
+            }
+        }
+
+        List<String> ihis = new ArrayList<>();
+        if (memberIds.getValuesAsQueryTokens().isEmpty()) {
+            return ihis;
+        }
+        SearchParameterMap patientParams = new SearchParameterMap();
+        patientParams.add(IAnyResource.SP_RES_ID, memberIds);
+        for (Patient member : patientDao.searchForResources(patientParams, requestDetails)) {
+            // members without an IHI cannot be matched to their documents
+            String ihi = getIhi(member);
+            if (ihi != null) {
+                ihis.add(ihi);
+            }
+        }
+        return ihis;
+    }
+
+    /**
+     * Generates the summaries of a batch of exported patients. The patients of the batch are looked up in one
+     * search, and their documents are not kept in the document state cache, so an export does not evict the
+     * patients that are being summarized interactively. The patients were checked against the caller when the
+     * job was started, the batches run as system requests in the tenant of the job.
+     *
+     * @param tenantId The tenant of the job, may be null.
+     * @return For each IHI, the summary Bundle or an OperationOutcome explaining why there is none.
+     */
+    private Map<String, Resource> generateExportSummaries(List<String> ihis, String tenantId) {
+        SystemRequestDetails requestDetails = new SystemRequestDetails();
+        requestDetails.setTenantId(tenantId);
+        TokenOrListParam identifiers = new TokenOrListParam();
+        for (String ihi : ihis) {
+            identifiers.addOr(new TokenParam(IHI_SYSTEM, ihi));
+        }
+        SearchParameterMap patientParams = new SearchParameterMap();
+        patientParams.add(Patient.SP_IDENTIFIER, identifiers);
+        Map<String, List<Patient>> patientsByIhi = new HashMap<>();
+        for (Patient patient : patientDao.searchForResources(patientParams, requestDetails)) {
+            patientsByIhi.computeIfAbsent(getIhi(patient), k -> new ArrayList<>()).add(patient);
+        }
+
+        Map<String, Resource> summaries = new LinkedHashMap<>();
+        for (String ihi : ihis) {
+            List<Patient> patients = patientsByIhi.get(ihi);
+            if (patients == null) {
+                summaries.put(ihi, generateOperationOutcome(OperationOutcome.IssueSeverity.ERROR,
+                    OperationOutcome.IssueType.NOTFOUND, "No patient found with IHI " + ihi + "."));
+            } else if (patients.size() > 1) {
+                summaries.put(ihi, generateOperationOutcome(OperationOutcome.IssueSeverity.ERROR,
+                    OperationOutcome.IssueType.PROCESSING, "Multiple patients found with IHI " + ihi + "."));
+            } else {
+                PatientDocumentIndex documentIndex = createDocumentIndex();
+                retrieveDocumentsByPatient(patients.get(0), false, documentIndex,
+                    countDocuments(patients.get(0), requestDetails), requestDetails);
+                summaries.put(ihi, generateMHRPS(patients.get(0), Collections.emptyList(), NarrativeBuilder.Mode.FULL, documentIndex,
+                    new SummaryStatistics(), RequestDeadline.NONE));
+            }
+        }
+        return summaries;
+    }
+
+    /**
+     * Searches for a Patient resource based on the provided parameters.
+     * When the {@link PatientMatchCache} is enabled, the ids of the Patients found by identifier are kept in it,
+     * and the other parameters are verified in memory against the Patients read with those ids. Otherwise an
+     * IHI is looked up on its own, by identifier only, as it identifies a single patient. Parameters that cannot
+     * be verified in memory are searched in the database.
+     * 
+     * @param patientIdentifier The identifier of the patient.
+     * @param patientBirthdate The birthdate of the patient.
+     * @param patientFamily The family name of the patient.
+     * @param patientGender 
+     * @param requestDetails The request details for the search.
+     * @return the list of matching Patient resources.
+     * */
+    private List<Patient> searchPatient(TokenParam patientIdentifier, DateParam patientBirthdate,
+            StringParam patientFamily, TokenParam patientGender, RequestDetails requestDetails) {
+
+        String matchKey = PatientMatchCache.createKey(patientIdentifier.getSystem(), patientIdentifier.getValue());
+        if (matchKey != null && PatientMatchCache.canMatch(patientBirthdate, patientFamily, patientGender)) {
+            List<Patient> candidates = null;
+            if (patientMatchCache.isEnabled()) {
+                candidates = findCachedPatients(patientIdentifier, matchKey, requestDetails);
+            } else if (IHI_SYSTEM.equals(patientIdentifier.getSystem())) {
+                candidates = searchPatientsByIdentifier(patientIdentifier, requestDetails);
+            }
+
+            if (candidates != null) {
+                List<Patient> matches = new ArrayList<>();
+                for (Patient candidate : candidates) {
+                    if (PatientMatchCache.matches(candidate, patientBirthdate, patientFamily, patientGender)) {
+                        matches.add(candidate);
+                    }
+                }
+                return matches;
+            }
+        }
+
+        SearchParameterMap patientParams = new SearchParameterMap();
+        patientParams.add(Patient.SP_IDENTIFIER, new TokenParam(patientIdentifier.getSystem(), patientIdentifier.getValue()));
+        patientParams.add(Patient.SP_BIRTHDATE, patientBirthdate);
+        patientParams.add(Patient.SP_FAMILY, patientFamily);
+        patientParams.add(Patient.SP_GENDER, patientGender);
+        List<Patient> searchOutcome = patientDao.searchForResources(patientParams, requestDetails);
+
+        return searchOutcome;
+    }
+
+    /**
+     * Finds the Patients with an identifier through the {@link PatientMatchCache}. The identifier is searched as a
+     * system request in the tenant of the request, so the cached ids do not depend on the caller, and the
+     * Patients are then read with the request of the caller, so its interceptors apply as for a search.
+     *
+     * @return The Patients, or null if they are to be searched in the database, see
+     *     {@link #searchPatientsByIdentifier}.
+     */
+    private List<Patient> findCachedPatients(TokenParam patientIdentifier, String matchKey, RequestDetails requestDetails) {
+        String tenantId = requestDetails != null ? requestDetails.getTenantId() : null;
+        List<IIdType> patientIds = patientMatchCache.get(tenantId, matchKey);
+        if (patientIds == null) {
+            long version = patientMatchCache.reserve();
+            SystemRequestDetails systemRequestDetails = new SystemRequestDetails();
+            systemRequestDetails.setTenantId(tenantId);
+            List<Patient> patients = searchPatientsByIdentifier(patientIdentifier, systemRequestDetails);
+            if (patients == null) return null;
+            patientMatchCache.put(tenantId, matchKey, patients, version);
+            patientIds = new ArrayList<>(patients.size());
+            for (Patient patient : patients) {
+                patientIds.add(patient.getIdElement().toUnqualifiedVersionless());
+            }
+        }
+
+        List<Patient> patients = new ArrayList<>(patientIds.size());
+        for (IIdType patientId : patientIds) {
+            try {
+                patients.add(patientDao.read(patientId, requestDetails));
+            } catch (ResourceNotFoundException | ResourceGoneException e) {
+                // deleted since it was cached, search again
+                patientMatchCache.invalidate(matchKey);
+                return null;
+            }
+        }
+        return patients;
+    }
+
+    /**
+     * Searches the Patients with an identifier, using the identifier index only. As an IHI identifies a single
+     * patient, at most {@value #IHI_MATCH_LIMIT} Patients are loaded for an IHI, which is enough to tell a unique
+     * IHI from one shared by several Patients.
+     *
+     * @return The Patients, or null if the IHI is shared, in which case the demographics decide in the database
+     *     which of the Patients match.
+     */
+    private List<Patient> searchPatientsByIdentifier(TokenParam patientIdentifier, RequestDetails requestDetails) {
+        SearchParameterMap identifierParams = new SearchParameterMap();
+        identifierParams.add(Patient.SP_IDENTIFIER, new TokenParam(patientIdentifier.getSystem(), patientIdentifier.getValue()));
+        if (!IHI_SYSTEM.equals(patientIdentifier.getSystem())) {
+            return patientDao.searchForResources(identifierParams, requestDetails);
+        }
+
+        identifierParams.setLoadSynchronousUpTo(IHI_MATCH_LIMIT);
+        identifierParams.setCount(IHI_MATCH_LIMIT);
+        List<Patient> patients = patientDao.searchForResources(identifierParams, requestDetails);
+        return patients.size() < IHI_MATCH_LIMIT ? patients : null;
+    }
+
+    /**
+     * Adds the Server-Timing header and the cost report of a summary request, requested with {@code _cost=true}.
+     * The cost report is an informational OperationOutcome returned with the summary.
+     */
+    private void addCostReport(List<IBaseResource> retVal, SummaryStatistics statistics, RequestDetails requestDetails) {
+        if (requestDetails != null && requestDetails.getResponse() != null) {
+            requestDetails.getResponse().addHeader(SERVER_TIMING_HEADER, statistics.toServerTiming());
+        }
+        OperationOutcome costReport = generateOperationOutcome(OperationOutcome.IssueSeverity.INFORMATION,
+            OperationOutcome.IssueType.INFORMATIONAL, statistics.toCostReport());
+        ResourceMetadataKeyEnum.ENTRY_SEARCH_MODE.put(costReport, BundleEntrySearchModeEnum.OUTCOME);
+        retVal.add(costReport);
+    }
+
+    /**
+     * Generates an OperationOutcome with the specified severity, issue type, and diagnostic message.
+     * 
+     * @param severity The severity of the issue (e.g., ERROR, WARNING).
+     * @param issueType The type of issue (e.g., PROCESSING, NOTFOUND).
+     * @param diagnostic A diagnostic message describing the issue.
+     * @return An OperationOutcome resource containing the issue details.
+     */
+    private OperationOutcome generateOperationOutcome(OperationOutcome.IssueSeverity severity,
+            OperationOutcome.IssueType issueType, String diagnostic) {
+        OperationOutcome operationOutcome = new OperationOutcome();
+        operationOutcome.addIssue().setSeverity(severity).setCode(issueType).setDiagnostics(diagnostic);
+
+        return operationOutcome;
+    }
+
+
+    /**
+     * Creates the ETag of a patient summary request from the stored versions of the patient and their documents
+     * and the request parameters. It is a weak ETag, the Bundle identifier and timestamps differ between two
+     * summaries with the same ETag.
+     */
+    private String createETag(Patient patient, TokenParam contentCode, List<Map.Entry<TokenParam, DateParam>> sectionLookbacks,
+            NarrativeBuilder.Mode narrativeMode, PatientDocumentIndex documentIndex) {
+        StringBuilder versions = new StringBuilder()
+            .append(patient.getIdElement().getIdPart()).append('/').append(patient.getIdElement().getVersionIdPart())
+            .append('\n').append(patientSummaryCache.createKey(getIhi(patient), contentCode, sectionLookbacks, narrativeMode));
+        // the default lookbacks of the optional sections move with the clock
+        versions.append('\n').append(ETAG_DAY_FORMATTER.format(Instant.now()));
+        // sorted, as cached superseded documents are added to the index ahead of their batch
+        List<String> documentKeys = documentIndex.getDocumentKeys();
+        Collections.sort(documentKeys);
+        for (String documentKey : documentKeys) {
+            versions.append('\n').append(documentKey);
+        }
+
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(versions.toString().getBytes(StandardCharsets.UTF_8));
+            return "W/\"" + Base64.getUrlEncoder().withoutPadding().encodeToString(digest) + "\"";
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Answers the request with 304 Not Modified if its If-None-Match header matches the ETag.
+     *
+     * @param etag The ETag of the current summary, may be null.
+     * @throws NotModifiedException If the client already has the current summary.
+     */
+    private void checkNotModified(String etag, RequestDetails requestDetails) {
+        if (etag == null || requestDetails == null) return;
+        if (matchesIfNoneMatch(etag, requestDetails.getHeader(Constants.HEADER_IF_NONE_MATCH))) {
+            if (requestDetails.getResponse() != null) {
+                requestDetails.getResponse().addHeader(Constants.HEADER_ETAG, etag);
+            }
+            throw new NotModifiedException("Not Modified");
+        }
+    }
+
+    /**
+     * Compares a weak ETag with the ETags of an If-None-Match header by weak comparison, as for GET requests.
+     *
+     * @param etag The weak ETag of the current summary.
+     * @param ifNoneMatch The If-None-Match header, may be null.
+     * @return Whether one of the ETags of the header, or {@code *}, matches.
+     */
+    static boolean matchesIfNoneMatch(String etag, String ifNoneMatch) {
+        if (ifNoneMatch == null) return false;
+        String opaqueTag = etag.substring(2);
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(opaqueTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Creates a name-based UUID from the given parts, so a resource generated from the same inputs keeps the
+     * same fullUrl in every summary.
+     */
+    private static String stableUuid(String... parts) {
+        return UUID.nameUUIDFromBytes(String.join("|", parts).getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    /**
+     * Creates the UUID of the MHR PS resource generated from an indexed entry of a source document.
+     */
+    private static String stableUuid(PatientDocumentIndex.IndexedEntry entry) {
+        String entryKey = entry.getEntry().getFullUrl();
+        if (entryKey == null) {
+            entryKey = entry.getResource().getResourceType() + "/" + entry.getResource().getIdElement().getIdPart();
+        }
+        return stableUuid(entry.getDocumentContext().getSourceKey(), entryKey);
+    }
+
+    /**
+     * Generates a My Health Record Patient Summary Bundle (MHR PS) for the given patient.
+     * 
+     * @param patient The Patient resource for which the summary is generated.
+     * @param sectionLookbacks A list of section codes and their lookback dates.
+     * @param narrativeMode How the narratives of the patient and the sections are generated.
+     * @param documentIndex The indexed documents of the patient.
+     * @param statistics The statistics the generation is timed and counted in.
+     * @param deadline The deadline of the request, optional sections are skipped once it is exceeded.
+     * @return A Bundle containing the MHR PS resources.
+     */
+    Bundle generateMHRPS(Patient patient, List<Map.Entry<TokenParam, DateParam>> sectionLookbacks,
+            NarrativeBuilder.Mode narrativeMode, PatientDocumentIndex documentIndex, SummaryStatistics statistics,
+            RequestDeadline deadline) {
+        long generationStart = System.nanoTime();
+        Bundle mhrPsBundle = createSummaryBundle(patient, narrativeMode, statistics);
+        Composition composition = (Composition) mhrPsBundle.getEntryFirstRep().getResource();
+        addSections(composition, documentIndex, mhrPsBundle, patient.getIdElement().getIdPart(), sectionLookbacks,
+            narrativeMode, new Date(), deadline);
+        statistics.addStage(SummaryStatistics.GENERATION, generationStart);
+        return mhrPsBundle;
+    }
+
+    /**
+     * Creates the MHR PS Bundle of a patient without its sections: the Composition, the Patient and the
+     * authoring Device and Organization. The id of the Patient is replaced by its UUID in the MHR PS Bundle.
+     *
+     * @param patient The Patient resource for which the summary is generated.
+     * @param narrativeMode How the narrative of the patient is generated.
+     * @param statistics The statistics the generation is counted in, kept with the Bundle.
+     * @return The MHR PS Bundle, starting with its Composition.
+     */
+    Bundle createSummaryBundle(Patient patient, NarrativeBuilder.Mode narrativeMode, SummaryStatistics statistics) {
+        Bundle mhrPsBundle = new Bundle();
+        mhrPsBundle.setUserData(STATISTICS_KEY, statistics);
+            
+        // Set the Bundle ID to a unique identifier
+        String bundleId = UUID.randomUUID().toString();
+        mhrPsBundle.setId(bundleId);
+
+        // Set the meta profile for the bundle
+        mhrPsBundle.setMeta(new Meta()
+            .addProfile("http://ns.electronichealth.net.au/fhir/mhr/ps/sparked-testing/StructureDefinition/mhr-au-ps-bundle"));
+
+        // set identifier for the Bundle
+        String bundleIdentifier = UUID.randomUUID().toString();
+        mhrPsBundle.setIdentifier(new Identifier()
+            .setSystem("http://mhr-operator/fhir/identifier")
+            .setValue(bundleIdentifier)
+        );
+
+        // Set the Bundle type to DOCUMENT
+        mhrPsBundle.setType(Bundle.BundleType.DOCUMENT);
+
+        // Set the Bundle timestamp
+        mhrPsBundle.setTimestamp(new Date());
+
+        // --- Generate UUIDs for resources ---
+        // derived from the patient, so unchanged summaries keep their fullUrls
+        String patientUuid = stableUuid("Patient", patient.getIdElement().getIdPart());
+        String authorDeviceUuid = stableUuid(patientUuid, "Device");
+        String authorOrgUuid = stableUuid(patientUuid, "Organization");
+        String compositionUuid = stableUuid(patientUuid, "Composition");
+
+        // --- Add Composition resource to the Bundle ---
+        Composition composition = new Composition();
+        composition.setId(compositionUuid);
+
+        // status
+        composition.setStatus(Composition.CompositionStatus.FINAL);
+
+        // Type
+        composition.setType(new CodeableConcept().addCoding(
+            new Coding()
+                .setSystem("http://loinc.org")
+                .setCode("60591-5")
+        ));
+
+        // Subject (Patient reference)
+        composition.setSubject(new Reference("urn:uuid:" + patientUuid));
+
+        // Date
+        composition.setDate(new Date());
+
+        // Author (Device)
+        composition.addAuthor(new Reference("urn:uuid:" + authorDeviceUuid));
+
+        // Custodian (Organization)
+        composition.setCustodian(new Reference("urn:uuid:" + authorOrgUuid));
+
+        // Title
+        composition.setTitle(generateSummaryTitle(composition.getDate()));
+
+        // Add Composition to Bundle
+        addEntry(mhrPsBundle, "urn:uuid:" + compositionUuid, composition);
+
+        // --- Add Patient resource ---
+        // Generate narrative for the patient
+        // (the patient narrative is short, a minimal narrative is the full one)
+        patient.setText(generatePatientNarrative(patient,
+            narrativeMode == NarrativeBuilder.Mode.MINIMAL ? NarrativeBuilder.Mode.FULL : narrativeMode));
+        patient.setMeta(new Meta()
+            .addProfile("http://ns.electronichealth.net.au/fhir/mhr/ps/sparked-testing/StructureDefinition/mhr-au-ps-patient"));
+        patient.setId(patientUuid);
+        addEntry(mhrPsBundle, "urn:uuid:" + patientUuid, patient);
+
+        // --- Add Device resource (author) ---
+        Device authorDevice = createAuthoringDevice(authorDeviceUuid, authorOrgUuid);     
+        addEntry(mhrPsBundle, "urn:uuid:" + authorDeviceUuid, authorDevice);
+
+        // --- Add Organization resource (author owner) ---
+        Organization deviceOrg = createDeviceOrganization(authorOrgUuid);
+        addEntry(mhrPsBundle, "urn:uuid:" + authorOrgUuid, deviceOrg);
+
+        return mhrPsBundle;
+    }
+
+    /**
+     * Populates the sections of the MHR PS Composition and adds their resources to the MHR PS Bundle.
+     *
+     * @param composition The Composition the sections are added to.
+     * @param documentIndex The indexed documents of the patient.
+     * @param mhrPsBundle The MHR PS Bundle the section resources are added to.
+     * @param patientUuid The UUID of the Patient in the MHR PS Bundle.
+     * @param sectionLookbacks A list of section codes and their lookback dates.
+     * @param narrativeMode How the narratives of the sections are generated.
+     * @param now The time the default lookbacks are counted back from.
+     * @param deadline The deadline of the request. It is checked before each optional section, the optional
+     *     sections left once it is exceeded are added empty and recorded as skipped in the statistics. The
+     *     mandatory sections are always generated.
+     */
+    private void addSections(Composition composition, PatientDocumentIndex documentIndex, Bundle mhrPsBundle,
+            String patientUuid, List<Map.Entry<TokenParam, DateParam>> sectionLookbacks,
+            NarrativeBuilder.Mode narrativeMode, Date now, RequestDeadline deadline) {
+        //1. the documents related to the patient are indexed by the caller
+        SummaryStatistics statistics = getStatistics(mhrPsBundle);
+
+        //2. mandatory sections
+
+        //2.1 Problems section
+        long sectionStart = System.nanoTime();
+        SectionComponent problemsSection = problemsSection(documentIndex, mhrPsBundle, patientUuid, narrativeMode);
+        composition.addSection(problemsSection);
+        statistics.addSection("11450-4", sectionStart);
+
+        //2.2 Allergies section
+        sectionStart = System.nanoTime();
+        SectionComponent allergiesSection = allergiesSection(documentIndex, mhrPsBundle, patientUuid, narrativeMode);   
+        composition.addSection(allergiesSection);
+        statistics.addSection("48765-2", sectionStart);
+
+        // 2.3 Medications section
+        sectionStart = System.nanoTime();
+        SectionComponent medicationsSection = medicationsSection(documentIndex, mhrPsBundle, patientUuid, narrativeMode);
+        composition.addSection(medicationsSection);
+        statistics.addSection("10160-0", sectionStart);
+
+        //3. optional sections
+        if (sectionLookbacks != null && !sectionLookbacks.isEmpty()) {
+            for (Map.Entry<TokenParam, DateParam> entry : sectionLookbacks) {
+                TokenParam sectionCode = entry.getKey();
+                sectionStart = System.nanoTime();
+
+                String skippedTitle = deadline.isExceeded() ? getOptionalSectionTitle(sectionCode) : null;
+                if (skippedTitle != null) {
+                    composition.addSection(skippedSection(skippedTitle, sectionCode.getValue(), narrativeMode));
+                    statistics.addSkippedSection(sectionCode.getValue());
+                    continue;
+                }
+
+                // Handle each section based on the code
+                if ("http://loinc.org".equals(sectionCode.getSystem())
+                    && "11369-6".equals(sectionCode.getValue())) {
+                    // default to 2 years lookback
+                    Date lookbackDate = new Date(now.getTime() - (2L * 365 * 24 * 60 * 60 * 1000));
+                    if(entry.getValue() != null && entry.getValue().isEmpty() == false) { 
+                        lookbackDate = entry.getValue().getValue();
+                    }
+                    // Call method to handle immunization section
+                    SectionComponent immunizationSection = immunizationsSection(documentIndex, mhrPsBundle, patientUuid, lookbackDate, narrativeMode);
+                    composition.addSection(immunizationSection);
+                    statistics.addSection("11369-6", sectionStart);
+                } else if ("http://loinc.org".equals(sectionCode.getSystem())
+                    && "47519-4".equals(sectionCode.getValue())) {
+                    // default to 5 years lookback
+                    Date lookbackDate = new Date(now.getTime() - (5L * 365 * 24 * 60 * 60 * 1000));
+                    if(entry.getValue() != null && entry.getValue().isEmpty() == false) { 
+                        lookbackDate = entry.getValue().getValue();
+                    }
+                    // Call method to handle procedure section
+                    SectionComponent procedureHistorySection = procedureHistorySection(documentIndex, mhrPsBundle, patientUuid, lookbackDate, narrativeMode);
+                    composition.addSection(procedureHistorySection);
+                    statistics.addSection("47519-4", sectionStart);
+                } else if ("http://loinc.org".equals(sectionCode.getSystem())
+                    && "81338-6".equals(sectionCode.getValue())) {
+                    // Call method to handle patient story section
+                    SectionComponent patientStorySection = patientStorySection(documentIndex, mhrPsBundle, patientUuid, narrativeMode);
+                    composition.addSection(patientStorySection);
+                    statistics.addSection("81338-6", sectionStart);
+                }
+            }
+        }
+
+        //4. the Provenances of the section resources
+        long provenanceStart = System.nanoTime();
+        addProvenances(mhrPsBundle);
+        statistics.addStage(SummaryStatistics.PROVENANCE, provenanceStart);
+    }
+
+    /**
+     * @return The title of the optional section with the given code, or null if it is not an optional section.
+     */
+    private static String getOptionalSectionTitle(TokenParam sectionCode) {
+        if (!"http://loinc.org".equals(sectionCode.getSystem())) return null;
+        switch (sectionCode.getValue()) {
+            case "11369-6":
+                return "Immunizations History";
+            case "47519-4":
+                return "Procedure History";
+            case "81338-6":
+                return "Patient Story";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Creates an empty optional section that was not generated as the request exceeded its deadline.
+     */
+    private static SectionComponent skippedSection(String title, String code, NarrativeBuilder.Mode narrativeMode) {
+        SectionComponent section = new SectionComponent();
+        section.setTitle(title);
+        section.setCode(new CodeableConcept().addCoding(
+            new Coding()
+                .setSystem("http://loinc.org")
+                .setCode(code)
+        ));
+        section.setEmptyReason(new CodeableConcept()
+            .addCoding(new Coding()
+                .setSystem("http://terminology.hl7.org/CodeSystem/list-empty-reason")
+                .setCode("unavailable"))
+            .setText("Not generated within the time allowed for the request."));
+        section.setText(new NarrativeBuilder(narrativeMode).buildMessage(Narrative.NarrativeStatus.GENERATED,
+            "This section was not generated within the time allowed for the request."));
+        return section;
+    }
+
+    
+
+    /**
+     * Generates the title of the MHR PS Composition.
+     * Format: dd-MMMM-yyyy HH:mm a z (e.g., 10-June-2025 08:38 am AEST)
+     */
+    private String generateSummaryTitle(Date date) {
+        String formattedDate = SUMMARY_TITLE_FORMATTER.format(date.toInstant());
+        return "MHR Generated Patient Summary - " + formattedDate;
+    }
+
+    /**
+     * Refreshes the fields of a cached MHR PS Bundle that identify a single generation of the summary:
+     * the Bundle identifier and timestamp, and the Composition date and title.
+     */
+    private void refreshSummary(Bundle mhrPsBundle) {
+        Date now = new Date();
+        mhrPsBundle.setTimestamp(now);
+        mhrPsBundle.setIdentifier(new Identifier()
+            .setSystem("http://mhr-operator/fhir/identifier")
+            .setValue(UUID.randomUUID().toString())
+        );
+
+        if (mhrPsBundle.hasEntry() && mhrPsBundle.getEntryFirstRep().getResource() instanceof Composition) {
+            Composition composition = (Composition) mhrPsBundle.getEntryFirstRep().getResource();
+            composition.setDate(now);
+            composition.setTitle(generateSummaryTitle(now));
+        }
+    }
+
+    /**
+     * Generates a Narrative for the Patient resource.
+     * 
+     * @param patient The Patient resource to generate the narrative for.
+     * @param narrativeMode How the narrative is generated.
+     * @return A Narrative object containing the generated narrative, or null if no narrative is requested.
+     */
+    private Narrative generatePatientNarrative(Patient patient, NarrativeBuilder.Mode narrativeMode) {
+        NarrativeBuilder patientNarrative = new NarrativeBuilder(narrativeMode);
+        patientNarrative.addLabel("Name:").addText(" ");
+        if (patient.hasName() && !patient.getName().isEmpty()) {
+            patientNarrative.addText(patient.getNameFirstRep().getNameAsSingleString());
+        } else {
+            patientNarrative.addText("Unknown");
+        }
+        patientNarrative.addLineBreak().addLabel("Date of Birth:").addText(" ");
+        if (patient.hasBirthDate()) {
+            patientNarrative.addText(NarrativeBuilder.formatDate(patient.getBirthDate()));
+        } else {
+            patientNarrative.addText("Unknown");
+        }
+        patientNarrative.addLineBreak().addLabel("Gender:").addText(" ");
+        if (patient.hasGender()) {
+            patientNarrative.addText(patient.getGender().toCode());
+        } else {
+            patientNarrative.addText("Unknown");
+        }
+        return patientNarrative.build(Narrative.NarrativeStatus.GENERATED);
+    }
+
+    /**
+     * Creates a Device resource representing the authoring device.
+     * 
+     * @param deviceUuid The UUID for the device.
+     * @param orgUuid The UUID for the organization that owns the device.
+     * @return The created Device resource.
+     */
+    private Device createAuthoringDevice(String deviceUuid, String orgUuid) {
+        Device device = new Device();
+        device.setId(deviceUuid);
+        device.addIdentifier(new Identifier()
+            .setSystem("http://ns.electronichealth.net.au/id/pcehr/paid/1.0")
+            .setValue("8003640003000026"));
+
+        device.addDeviceName(new DeviceDeviceNameComponent()
+            .setName("My Health Record")
+            .setType(Device.DeviceNameType.MANUFACTURERNAME));
+        device.setOwner(new Reference("urn:uuid:" + orgUuid));
+        return device;
+    }
+
+    /**
+     * Creates an Organization resource representing the device organization.
+     * 
+     * @param orgUuid The UUID for the organization.
+     * @return The created Organization resource.
+     */
+    private Organization createDeviceOrganization(String orgUuid) {
+        Organization deviceOrganization = new Organization();
+        deviceOrganization.setId(orgUuid);
+        deviceOrganization.addIdentifier(new Identifier()
+            .setType(new CodeableConcept()
+            .addCoding(new Coding()
+                .setSystem("http://terminology.hl7.org/CodeSystem/v2-0203")
+                .setCode("XX"))
+            .setText("Australian Business Number (ABN)"))
+            .setSystem("http://hl7.org.au/id/abn")
+            .setValue("84425496912"));
+        deviceOrganization.setName("My Health Record system operator");
+        deviceOrganization.addTelecom()
+            .setSystem(ContactPointSystem.EMAIL)
+            .setValue("help@digitalhealth.gov.au")
+            .setUse(ContactPointUse.WORK);
+        deviceOrganization.addTelecom()
+            .setSystem(ContactPointSystem.PHONE)
+            .setValue("1300 901 001")
+            .setUse(ContactPointUse.WORK);
+        deviceOrganization.addAddress()
+            .addLine("Level 25, 175 Liverpool Street")
+            .setCity("Sydney")
+            .setState("NSW")
+            .setPostalCode("2000")
+            .setCountry("Australia");
+
+        return deviceOrganization;
+    }
+    
+
+    /**
+     * Returns the indexed documents of the patient. The index kept for the patient is reused when there is one
+     * and it holds as many documents as the database, otherwise the documents are retrieved and indexed by
+     * resource type, so each section only visits its own entries.
+     *
+     * @param documentCount The stored document count of the request, shared with the summary cache.
+     */
+    private PatientDocumentIndex loadDocumentIndex(Patient patient, List<Map.Entry<TokenParam, DateParam>> sectionLookbacks,
+            PatientDocumentCount documentCount, RequestDetails requestDetails) {
+        String ihi = getIhi(patient);
+        if (ihi != null && patientDocumentStateCache.isEnabled()) {
+            PatientDocumentIndex documentIndex = patientDocumentStateCache.get(ihi);
+            if (documentIndex != null) {
+                // documents stored on another node or outside the storage hooks are not in the kept index
+                if (documentCount.get() == documentIndex.getDocumentCount()) {
+                    return documentIndex;
+                }
+                patientDocumentStateCache.invalidate(ihi);
+            }
+
+            long version = patientDocumentStateCache.reserve(ihi);
+            PatientDocumentIndex loadedIndex = null;
+            try {
+                documentIndex = createDocumentIndex();
+                // the kept index serves later requests for any section, so it includes the excluded documents
+                retrieveDocumentsByPatient(patient, true, documentIndex, documentCount, requestDetails);
+                loadedIndex = documentIndex;
+            } finally {
+                // an index that failed to load is not kept
+                patientDocumentStateCache.complete(ihi, version, loadedIndex);
+            }
+            return documentIndex;
+        }
+
+        // documents of the excluded system are only read by the patient story section
+        boolean includeExcludedDocuments = isSectionRequested(sectionLookbacks, "81338-6");
+        PatientDocumentIndex documentIndex = createDocumentIndex();
+        retrieveDocumentsByPatient(patient, includeExcludedDocuments, documentIndex, documentCount,
+            requestDetails);
+        return documentIndex;
+    }
+
+    /**
+     * Returns the number of stored document Bundles of the patient, counted once it is first needed.
+     */
+    private PatientDocumentCount countDocuments(Patient patient, RequestDetails requestDetails) {
+        String ihi = getIhi(patient);
+        if (ihi == null) return PatientDocumentCount.UNKNOWN;
+        return new PatientDocumentCount(() -> countDocumentsByPatient(ihi, requestDetails));
+    }
+
+    /**
+     * Counts the stored document Bundles of the patient, excluded documents included, without loading them.
+     */
+    private int countDocumentsByPatient(String ihi, RequestDetails requestDetails) {
+        SearchParameterMap countParams = new SearchParameterMap();
+        countParams.add(Bundle.SP_TYPE, new TokenParam("document"));
+        countParams.add("composition.patient.identifier", new TokenParam(IHI_SYSTEM, ihi));
+        countParams.setSummaryMode(SummaryEnum.COUNT);
+        countParams.setLoadSynchronous(true);
+        Integer count = bundleDao.search(countParams, requestDetails).size();
+        return count != null ? count : -1;
+    }
+
+    /**
+     * Creates an empty index of the documents of a patient, keeping the entries the sections read.
+     */
+    static PatientDocumentIndex createDocumentIndex() {
+        return new PatientDocumentIndex(excludedSystem, SECTION_RESOURCE_TYPES);
+    }
+
+    /**
+     * Returns the IHI of the patient.
+     *
+     * @return The value of the first IHI identifier, or null if the patient has none.
+     */
+    static String getIhi(Patient patient) {
+        for (Identifier identifier : patient.getIdentifier()) {
+            if (IHI_SYSTEM.equals(identifier.getSystem())) {
+                return identifier.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks whether the optional section with the given LOINC code is requested.
+     */
+    private boolean isSectionRequested(List<Map.Entry<TokenParam, DateParam>> sectionLookbacks, String sectionCode) {
+        if (sectionLookbacks == null) return false;
+        for (Map.Entry<TokenParam, DateParam> entry : sectionLookbacks) {
+            TokenParam code = entry.getKey();
+            if ("http://loinc.org".equals(code.getSystem()) && sectionCode.equals(code.getValue())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Retrieves document Bundles for a specific patient by searching for Bundles of type 'document'
+     * where the first entry (Composition) references the given patient.
+     * The documents are fetched in pages of {@code documentBatchSize} and each page is added to the index
+     * before the next one is fetched, so only one page of complete documents is held at a time. Each page is a
+     * synchronous offset search, so the results of an earlier search are not reused (a document stored moments
+     * ago would be missing) and no search is persisted for the request.
+     * When all documents of the patient are held in the {@link CompressedDocumentCache}, and the database holds
+     * as many, they are decoded from there instead, in batches of the same size, skipping superseded documents;
+     * otherwise the fetched documents are added to that cache. Superseded documents are left out of the index either way.
+     *
+     * @param includeExcludedDocuments Whether documents identified in the excluded system are fetched as well.
+     * @param documentIndex The index the documents are added to.
+     * @param documentCount The stored document count of the request, the cached documents are checked against it.
+     */
+    private void retrieveDocumentsByPatient(Patient patient, boolean includeExcludedDocuments,
+            PatientDocumentIndex documentIndex, PatientDocumentCount documentCount, RequestDetails requestDetails) {
+        SearchParameterMap bundleParams = new SearchParameterMap();
+        // Restrict to document Bundles
+        
+        // Restrict to Bundles whose first entry Composition.subject references the patient
+        // Find the IHI identifier from the patient's identifiers
+        String ihiValue = getIhi(patient);
+        if (ihiValue != null) {
+            if (documentCache.isEnabled()) {
+                // the cached documents include the excluded ones, the index keeps those apart
+                List<CompressedDocumentCache.CachedDocument> cachedDocuments = documentCache.getDocuments(ihiValue);
+                if (cachedDocuments != null && documentCount.get() != cachedDocuments.size()) {
+                    // documents stored on another node or outside the storage hooks are not in the cached set
+                    documentCache.invalidate(ihiValue);
+                    cachedDocuments = null;
+                }
+                if (cachedDocuments != null) {
+                    // superseded documents are known from their versions, they are not decoded
+                    List<DocumentVersion> versions = new ArrayList<>(cachedDocuments.size());
+                    for (CompressedDocumentCache.CachedDocument cachedDocument : cachedDocuments) {
+                        versions.add(cachedDocument.getVersion());
+                    }
+                    Set<DocumentVersion> superseded = DocumentVersion.findSuperseded(versions);
+
+                    for (int fromIndex = 0; fromIndex < cachedDocuments.size(); fromIndex += documentBatchSize) {
+                        List<CompressedDocumentCache.CachedDocument> batch = cachedDocuments.subList(fromIndex,
+                            Math.min(fromIndex + documentBatchSize, cachedDocuments.size()));
+                        List<Bundle> documents = new ArrayList<>(batch.size());
+                        for (CompressedDocumentCache.CachedDocument cachedDocument : batch) {
+                            if (superseded.contains(cachedDocument.getVersion())) {
+                                documentIndex.addSupersededDocument(cachedDocument.getVersion());
+                            } else {
+                                documents.add(documentCache.decode(cachedDocument));
+                            }
+                        }
+                        documentIndex.addDocuments(documents);
+                    }
+                    return;
+                }
+            }
+            // only a complete document set is cached for the patient
+            boolean cacheDocuments = documentCache.isEnabled() && includeExcludedDocuments;
+            long cacheVersion = cacheDocuments ? documentCache.reserve(ihiValue) : 0;
+            List<String> cachedKeys = new ArrayList<>();
+
+            bundleParams.add(Bundle.SP_TYPE, new TokenParam("document"));
+            bundleParams.add("composition.patient.identifier", new TokenParam(IHI_SYSTEM, ihiValue));
+            if (!includeExcludedDocuments) {
+                // skip the excluded documents in the database rather than loading them to be ignored
+                bundleParams.add(Bundle.SP_IDENTIFIER, new TokenParam(excludedSystem, null).setModifier(TokenParamModifier.NOT));
+            }
+            // a stable order, so consecutive offsets do not skip or repeat documents
+            bundleParams.setSort(new SortSpec(IAnyResource.SP_RES_ID));
+            bundleParams.setCount(documentBatchSize);
+
+            int fromIndex = 0;
+            while (true) {
+                bundleParams.setOffset(fromIndex);
+                IBundleProvider searchResults = bundleDao.search(bundleParams, requestDetails);
+                List<IBaseResource> page = searchResults.getResources(0, documentBatchSize);
+                if (page.isEmpty()) {
+                    break;
+                }
+                List<Bundle> documents = new ArrayList<>(page.size());
+                for (IBaseResource resource : page) {
+                    documents.add((Bundle) resource);
+                    if (cacheDocuments) {
+                        cachedKeys.add(documentCache.putDocument((Bundle) resource));
+                    }
+                }
+                documentIndex.addDocuments(documents);
+                fromIndex += page.size();
+                if (page.size() < documentBatchSize) {
+                    break;
+                }
+            }
+
+            if (cacheDocuments) {
+                documentCache.completeDocumentSet(ihiValue, cacheVersion, cachedKeys);
+            }
+        }
+    }
+
+    /**
+     * Creates a SectionComponent for the Medications section.
+     * This is a placeholder method and should be implemented to retrieve actual medication data.
+     */
+    SectionComponent allergiesSection(PatientDocumentIndex documentIndex, Bundle mhrPsBundle, String mhrPsPatientUuid,
+            NarrativeBuilder.Mode narrativeMode) {
+        SectionComponent section = new SectionComponent();
+        NarrativeBuilder sectionNarrative = new NarrativeBuilder(ALLERGIES_TABLE, narrativeMode);
+
+        section.setTitle("Allergies and Intolerances");
+        section.setCode(new CodeableConcept().addCoding(
+            new Coding()
+                .setSystem("http://loinc.org")
+                .setCode("48765-2")
+        ));
+
+        boolean hasAllergies = false;
+        for (PatientDocumentIndex.IndexedEntry entry : getSectionEntries(mhrPsBundle, documentIndex, false, ResourceType.AllergyIntolerance)) {
+            IBaseResource resource = entry.getResource();
+            if (resource instanceof AllergyIntolerance) {
+                hasAllergies = true;
+                String allergyUuid = stableUuid(entry);
+                String itemUuid = findClinicalItem(mhrPsBundle, (Resource) resource, allergyUuid);
+                if (itemUuid != null) {
+                    // the allergy is summarized from its copy in another document
+                    generateProvenance(mhrPsBundle, entry.getDocumentContext(), itemUuid);
+                    continue;
+                }
+                // modify a copy, the indexed resources can be shared with other requests
+                AllergyIntolerance allergy = ((AllergyIntolerance) resource).copy();
+
+                // Update the patient reference to the MHR PS Patient UUID
+                if (mhrPsPatientUuid != null) {
+                    allergy.setPatient(new Reference("urn:uuid:" + mhrPsPatientUuid));
+                }
+
+                Reference allergyReference = new Reference("urn:uuid:" + allergyUuid);
+                section.addEntry(allergyReference);
+
+                // Add the allergy resource to the MHR PS Bundle
+                allergy.setId(allergyUuid);
+                addEntry(mhrPsBundle, "urn:uuid:" + allergyUuid, allergy);
+
+                // --- Add Provenance resource for this AllergyIntolerance ---
+                generateProvenance(mhrPsBundle, entry.getDocumentContext(), allergyUuid);
+
+                // Build up the table rows for each allergy
+                String allergyText = allergy.getCode() != null ? allergy.getCode().getText() : "";
+                String clinicalStatus = allergy.hasClinicalStatus() && allergy.getClinicalStatus().hasCoding()
+                        ? allergy.getClinicalStatus().getCodingFirstRep().getCode() : "";
+                String verificationStatus = allergy.hasVerificationStatus() && allergy.getVerificationStatus().hasCoding()
+                        ? allergy.getVerificationStatus().getCodingFirstRep().getCode() : "";
+                String onset = allergy.hasOnset() ? allergy.getOnset().toString() : "";
+
+                sectionNarrative.addRow(allergyText, clinicalStatus, verificationStatus, onset);
+            }
+        }
+
+        if (!hasAllergies) {
+            section.setEmptyReason(new CodeableConcept()
+                .addCoding(new Coding()
+                    .setSystem("http://terminology.hl7.org/CodeSystem/list-empty-reason")
+                    .setCode("unavailable"))
+                .setText("No information available."));
+            section.setText(sectionNarrative.buildMessage(Narrative.NarrativeStatus.GENERATED, "No allergies or intolerances recorded."));
+        } else {
+            section.setText(sectionNarrative.build(Narrative.NarrativeStatus.GENERATED));
+        }
+        return section;
+    }
+
+
+    /**
+     * Generates the Provenance of a resource in the MHR PS Bundle, or adds another source document to it.
+     * A resource summarizing a clinical item recorded in several documents has a single Provenance with the
+     * entity and agents of each of its documents, see {@link #findClinicalItem(Bundle, Resource, String)}.
+     * The agents and the entity only depend on the source document, so they are built for the first
+     * resource of a document, kept with the MHR PS Bundle and copied for the others.
+     * 
+     * @param sourceDocument The source document containing the Composition.
+     * @param targetUuid The UUID of the target resource being provenanced (e.g., AllergyIntolerance).
+     * @return void - the Provenance is added to the document by {@link #addProvenances(Bundle)}.
+     */
+    void generateProvenance(Bundle mhrPsBundle, DocumentContext sourceDocument, String targetUuid){
+        long provenanceStart = System.nanoTime();
+        Map<String, Provenance> provenances = getBundleUserDataMap(mhrPsBundle, PROVENANCES_KEY, LinkedHashMap::new);
+        Provenance provenance = provenances.get(targetUuid);
+        if (provenance == null) {
+            provenance = new Provenance();
+            provenance.setId(stableUuid("Provenance", targetUuid));
+
+            Date documentTimestamp = sourceDocument.getTimestamp();
+            provenance.setRecorded(documentTimestamp != null ? documentTimestamp : new Date());
+
+            // Set target to the resource being provenance
+            provenance.addTarget(new Reference("urn:uuid:" + targetUuid));
+            provenances.put(targetUuid, provenance);
+            getStatistics(mhrPsBundle).addProvenanceCreated();
+        }
+
+        // Set agents (author and custodian of the document) and entity (source document)
+        Map<DocumentContext, Provenance> provenanceTemplates = getBundleUserDataMap(mhrPsBundle, PROVENANCE_TEMPLATES_KEY, IdentityHashMap::new);
+        Provenance template = provenanceTemplates.get(sourceDocument);
+        if (template == null) {
+            template = new Provenance();
+            template.setAgent(createProvenanceAgents(mhrPsBundle, sourceDocument));
+            template.addEntity(createProvenanceEntity(sourceDocument));
+            provenanceTemplates.put(sourceDocument, template);
+        }
+        for (Provenance.ProvenanceAgentComponent agent : template.getAgent()) {
+            // documents of the same author and custodian share the agents
+            if (provenance.getAgent().stream().noneMatch(agent::equalsDeep)) {
+                provenance.addAgent(agent.copy());
+            }
+        }
+        for (Provenance.ProvenanceEntityComponent entity : template.getEntity()) {
+            provenance.addEntity(entity.copy());
+        }
+        getStatistics(mhrPsBundle).addStage(SummaryStatistics.PROVENANCE, provenanceStart);
+    }
+
+    /**
+     * Adds the generated Provenances to the MHR PS Bundle. They are added once all sections are generated,
+     * when every source document of their targets is known.
+     */
+    private void addProvenances(Bundle mhrPsBundle) {
+        Map<String, Provenance> provenances = getBundleUserDataMap(mhrPsBundle, PROVENANCES_KEY, LinkedHashMap::new);
+        for (Provenance provenance : provenances.values()) {
+            addEntry(mhrPsBundle, "urn:uuid:" + provenance.getIdElement().getIdPart(), provenance);
+        }
+        provenances.clear();
+    }
+
+    /**
+     * Finds the resource summarizing the clinical item a source resource records, so an item recorded in
+     * several documents is summarized once. The representative of an item is chosen when the entries of the
+     * section are read, see {@link #chooseClinicalItems}.
+     *
+     * @param resource The source resource.
+     * @param uuid The UUID the resource gets in the MHR PS Bundle.
+     * @return The UUID of the representative of the item, or null if the resource is the representative
+     *     or is not deduplicated.
+     */
+    private String findClinicalItem(Bundle mhrPsBundle, Resource resource, String uuid) {
+        String itemKey = ClinicalItemKey.of(resource, dedupeStrategy);
+        if (itemKey == null) return null;
+        Map<String, String> clinicalItems = getBundleUserDataMap(mhrPsBundle, CLINICAL_ITEMS_KEY, HashMap::new);
+        String representativeUuid = clinicalItems.get(itemKey);
+        if (representativeUuid == null || representativeUuid.equals(uuid)) {
+            return null;
+        }
+        getStatistics(mhrPsBundle).addDedupeHit();
+        return representativeUuid;
+    }
+
+    /**
+     * Chooses the representative of each clinical item among the entries of a section: the copy from the most
+     * recent document, so an item shows its latest status and details. Copies from equally recent documents
+     * keep the first one. The representative is emitted where it is in document order, the other copies only
+     * add their documents to its Provenance.
+     */
+    private void chooseClinicalItems(Bundle mhrPsBundle, List<PatientDocumentIndex.IndexedEntry> entries) {
+        if (dedupeStrategy == ClinicalItemKey.Strategy.NONE) return;
+        Map<String, String> clinicalItems = getBundleUserDataMap(mhrPsBundle, CLINICAL_ITEMS_KEY, HashMap::new);
+        Map<String, Date> representativeDates = new HashMap<>();
+        for (PatientDocumentIndex.IndexedEntry entry : entries) {
+            String itemKey = ClinicalItemKey.of(entry.getResource(), dedupeStrategy);
+            if (itemKey == null) continue;
+            Date documentDate = entry.getDocumentContext().getDocumentDate();
+            if (!representativeDates.containsKey(itemKey) || isMoreRecent(documentDate, representativeDates.get(itemKey))) {
+                representativeDates.put(itemKey, documentDate);
+                clinicalItems.put(itemKey, stableUuid(entry));
+            }
+        }
+    }
+
+    private static boolean isMoreRecent(Date date, Date other) {
+        if (date == null) return false;
+        return other == null || date.after(other);
+    }
+
+    /**
+     * Returns the entries a section visits, counting them in the statistics of the summary, and chooses the
+     * representatives of the clinical items among them.
+     */
+    private List<PatientDocumentIndex.IndexedEntry> getSectionEntries(Bundle mhrPsBundle, PatientDocumentIndex documentIndex,
+            boolean includeExcludedDocuments, ResourceType... types) {
+        return getSectionEntries(mhrPsBundle, documentIndex, includeExcludedDocuments, null, types);
+    }
+
+    /**
+     * Returns the entries a section visits that match the filter, such as the lookback of the section. The
+     * representatives of the clinical items are chosen among the matching entries only, so an item is not
+     * represented by a copy the section leaves out.
+     *
+     * @param filter The resources the section includes, or null for all of them.
+     */
+    private List<PatientDocumentIndex.IndexedEntry> getSectionEntries(Bundle mhrPsBundle, PatientDocumentIndex documentIndex,
+            boolean includeExcludedDocuments, Predicate<Resource> filter, ResourceType... types) {
+        List<PatientDocumentIndex.IndexedEntry> entries = documentIndex.getEntries(includeExcludedDocuments, types);
+        getStatistics(mhrPsBundle).addEntriesScanned(entries.size());
+        if (filter != null) {
+            List<PatientDocumentIndex.IndexedEntry> matchingEntries = new ArrayList<>(entries.size());
+            for (PatientDocumentIndex.IndexedEntry entry : entries) {
+                if (filter.test(entry.getResource())) {
+                    matchingEntries.add(entry);
+                }
+            }
+            entries = matchingEntries;
+        }
+        chooseClinicalItems(mhrPsBundle, entries);
+        return entries;
+    }
+
+    /**
+     * Returns the statistics of the summary the MHR PS Bundle is generated for.
+     */
+    private SummaryStatistics getStatistics(Bundle mhrPsBundle) {
+        return (SummaryStatistics) mhrPsBundle.getUserData(STATISTICS_KEY);
+    }
+
+    /**
+     * Creates the author and custodian Provenance agents of a source document. The author and custodian
+     * resources are added to the MHR PS Bundle unless a resource with the same identifier is already there.
+     *
+     * @param mhrPsBundle The MHR PS Bundle being generated.
+     * @param sourceDocument The source document containing the Composition.
+     * @return The agents, empty if the document has no Composition.
+     */
+    private List<Provenance.ProvenanceAgentComponent> createProvenanceAgents(Bundle mhrPsBundle, DocumentContext sourceDocument) {
+        List<Provenance.ProvenanceAgentComponent> agents = new ArrayList<>();
+        Composition comp = sourceDocument.getComposition();
+        if (comp == null) {
+            return agents;
+        }
+
+        // Author agent
+        if (comp.hasAuthor() && !comp.getAuthor().isEmpty()) {
+            Provenance.ProvenanceAgentComponent authorAgent = new Provenance.ProvenanceAgentComponent();
+            authorAgent.setType(new CodeableConcept().addCoding(
+            new Coding()
+                .setSystem("http://terminology.hl7.org/CodeSystem/provenance-participant-type")
+                .setCode("author")
+                .setDisplay("Author")
+            ));
+
+            agents.add(authorAgent);
+
+            // find the author from the source document
+            Reference authorRef = comp.getAuthorFirstRep();
+            Resource authorResource = sourceDocument.getResourceByFullUrl(authorRef.getReference());
+            if (authorResource != null) {
+                authorAgent.setWho(resolveAgentReference(mhrPsBundle, authorRef, authorResource));
+            }
+        }
+
+        // Custodian agent
+        if (comp.hasCustodian()) {
+            Provenance.ProvenanceAgentComponent custodianAgent = new Provenance.ProvenanceAgentComponent();
+            custodianAgent.setType(new CodeableConcept().addCoding(
+            new Coding()
+                .setSystem("http://terminology.hl7.org/CodeSystem/provenance-participant-type")
+                .setCode("custodian")
+                .setDisplay("Custodian")
+            ));
+
+            agents.add(custodianAgent);
+
+            // Fetch the actual custodian resource from the sourceDocument and add to mhrPsBundle
+            Reference custodianRef = comp.getCustodian();
+            Resource custodianResource = sourceDocument.getResourceByFullUrl(custodianRef.getReference());
+            if (custodianResource != null) {
+                custodianAgent.setWho(resolveAgentReference(mhrPsBundle, custodianRef, custodianResource));
+            }
+        }
+
+        return agents;
+    }
+
+    /**
+     * Returns a reference to the agent resource in the MHR PS Bundle. If a resource with the same identifier
+     * is already present it is reused, otherwise the agent resource is added under its source fullUrl.
+     */
+    private Reference resolveAgentReference(Bundle mhrPsBundle, Reference sourceRef, Resource agentResource) {
+        String existingFullUrl = findResourceFullUrlByIdentifier(agentResource, mhrPsBundle);
+        if (existingFullUrl != null) {
+            return new Reference(existingFullUrl);
+        }
+        addEntry(mhrPsBundle, sourceRef.getReference(), agentResource.copy());
+        return sourceRef;
+    }
+
+    /**
+     * Creates the Provenance entity referring to the source document.
+     */
+    private Provenance.ProvenanceEntityComponent createProvenanceEntity(DocumentContext sourceDocument) {
+        Provenance.ProvenanceEntityComponent entity = new Provenance.ProvenanceEntityComponent();
+        entity.setRole(Provenance.ProvenanceEntityRole.SOURCE);
+
+        Reference docRef = new Reference();
+        // Set identifier to the document's identifier
+        if (sourceDocument.getIdentifier() != null) {
+            docRef.setIdentifier(sourceDocument.getIdentifier());
+        }
+        // Set display to the Composition.title if available
+        Composition comp = sourceDocument.getComposition();
+        if (comp != null && comp.hasTitle()) {
+            docRef.setDisplay(comp.getTitle());
+        }
+        // Set type to "Bundle"
+        docRef.setType("Bundle");
+
+        entity.setWhat(docRef);
+        return entity;
+    }
+
+    /**
+     * Adds a resource to the MHR PS Bundle and registers its identifiers in the Bundle's identifier index,
+     * so that {@link #findResourceFullUrlByIdentifier(IBaseResource, Bundle)} does not need to scan the Bundle.
+     *
+     * @param mhrPsBundle The MHR PS Bundle being generated.
+     * @param fullUrl The fullUrl of the new entry.
+     * @param resource The resource to add.
+     * @return The added entry.
+     */
+    private Bundle.BundleEntryComponent addEntry(Bundle mhrPsBundle, String fullUrl, Resource resource) {
+        Bundle.BundleEntryComponent newEntry = mhrPsBundle.addEntry();
+        newEntry.setFullUrl(fullUrl);
+        newEntry.setResource(resource);
+        getStatistics(mhrPsBundle).addEntryEmitted();
+
+        List<Identifier> identifiers = getAgentIdentifiers(resource);
+        if (identifiers != null && !identifiers.isEmpty()) {
+            Map<String, String> identifierIndex = getIdentifierIndex(mhrPsBundle);
+            for (Identifier identifier : identifiers) {
+                String key = identifierKey(resource.fhirType(), identifier);
+                if (key != null) {
+                    // keep the first entry registered for an identifier, as the former Bundle scan did
+                    identifierIndex.putIfAbsent(key, fullUrl);
+                }
+            }
+        }
+        return newEntry;
+    }
+
+    /**
+     * Finds the fullUrl of a resource in the given Bundle that matches the provided resource
+     * by type and identifier. Supports Organization, Patient, RelatedPerson, Device, and Practitioner.
+     * Only entries added through {@link #addEntry(Bundle, String, Resource)} are found.
+     *
+     * @param resource The FHIR resource to match (Organization, Patient, RelatedPerson, Device, Practitioner).
+     * @param bundle The Bundle to search within.
+     * @return The fullUrl of the matching resource in the bundle, or null if not found.
+     */
+    String findResourceFullUrlByIdentifier(IBaseResource resource, Bundle bundle) {
+        if (resource == null || bundle == null) return null;
+
+        List<Identifier> identifiers = getAgentIdentifiers(resource);
+        if (identifiers == null || identifiers.isEmpty()) return null;
+
+        Map<String, String> identifierIndex = getIdentifierIndex(bundle);
+        for (Identifier identifier : identifiers) {
+            String key = identifierKey(resource.fhirType(), identifier);
+            if (key == null) continue;
+            String fullUrl = identifierIndex.get(key);
+            if (fullUrl != null) {
+                return fullUrl;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the identifier index of the MHR PS Bundle, keyed by resource type, system and value.
+     */
+    private Map<String, String> getIdentifierIndex(Bundle mhrPsBundle) {
+        return getBundleUserDataMap(mhrPsBundle, IDENTIFIER_INDEX_KEY, HashMap::new);
+    }
+
+    /**
+     * Returns a map of generation state kept as user data on the MHR PS Bundle, so that it lives exactly as
+     * long as the Bundle.
+     */
+    @SuppressWarnings("unchecked")
+    private <K, V> Map<K, V> getBundleUserDataMap(Bundle mhrPsBundle, String key, Supplier<Map<K, V>> mapFactory) {
+        Map<K, V> map = (Map<K, V>) mhrPsBundle.getUserData(key);
+        if (map == null) {
+            map = mapFactory.get();
+            mhrPsBundle.setUserData(key, map);
+        }
+        return map;
+    }
+
+    /**
+     * Extracts the identifiers of the resource types that can be Provenance agents or Procedure performers.
+     *
+     * @return The identifiers, or null if the resource type is not supported.
+     */
+    private List<Identifier> getAgentIdentifiers(IBaseResource resource) {
+        if (resource == null) return null;
+
+        switch (resource.fhirType()) {
+            case "Organization":
+                return ((Organization) resource).getIdentifier();
+            case "Patient":
+                return ((Patient) resource).getIdentifier();
+            case "RelatedPerson":
+                return ((RelatedPerson) resource).getIdentifier();
+            case "Device":
+                return ((Device) resource).getIdentifier();
+            case "Practitioner":
+                return ((Practitioner) resource).getIdentifier();
+            default:
+                return null;
+        }
+    }
+
+    private String identifierKey(String resourceType, Identifier identifier) {
+        if (identifier == null || !identifier.hasSystem() || !identifier.hasValue()) return null;
+        return resourceType + "|" + identifier.getSystem() + "|" + identifier.getValue();
+    }
+
+    /**
+     * Creates a SectionComponent for the Medications section.
+     * This is a placeholder method and should be implemented to retrieve actual medication data.
+     */
+    SectionComponent problemsSection(PatientDocumentIndex documentIndex, Bundle mhrPsBundle, String mhrPsPatientUuid,
+            NarrativeBuilder.Mode narrativeMode) {
+        SectionComponent section = new SectionComponent();
+        NarrativeBuilder sectionNarrative = new NarrativeBuilder(PROBLEMS_TABLE, narrativeMode);
+
+        section.setTitle("Problems List");
+        section.setCode(new CodeableConcept().addCoding(
+            new Coding()
+                .setSystem("http://loinc.org")
+                .setCode("11450-4")
+        ));
+
+        boolean hasProblems = false;
+        for (PatientDocumentIndex.IndexedEntry entry : getSectionEntries(mhrPsBundle, documentIndex, false, ResourceType.Condition)) {
+            IBaseResource resource = entry.getResource();
+            if (resource instanceof Condition) {
+                hasProblems = true;
+                String conditionUuid = stableUuid(entry);
+                String itemUuid = findClinicalItem(mhrPsBundle, (Resource) resource, conditionUuid);
+                if (itemUuid != null) {
+                    // the condition is summarized from its copy in another document
+                    generateProvenance(mhrPsBundle, entry.getDocumentContext(), itemUuid);
+                    continue;
+                }
+                Condition condition = ((Condition) resource).copy();
+
+                // Update the patient reference to the MHR PS Patient UUID
+                if (mhrPsPatientUuid != null) {
+                    condition.setSubject(new Reference("urn:uuid:" + mhrPsPatientUuid));
+                }
+
+                Reference conditionReference = new Reference("urn:uuid:" + conditionUuid);
+                section.addEntry(conditionReference);
+
+                // Add the Condition resource to the MHR PS Bundle
+                condition.setId(conditionUuid);
+                addEntry(mhrPsBundle, "urn:uuid:" + conditionUuid, condition);
+
+                // --- Add Provenance resource for this Condition ---
+                generateProvenance(mhrPsBundle, entry.getDocumentContext(), conditionUuid);
+
+                // Build up the table rows for each condition
+                // Extract fields
+                String conditionText = condition.getCode() != null ? condition.getCode().getText() : "";
+                String clinicalStatus = condition.hasClinicalStatus() && condition.getClinicalStatus().hasCoding()
+                        ? condition.getClinicalStatus().getCodingFirstRep().getCode() : "";
+                String verificationStatus = condition.hasVerificationStatus() && condition.getVerificationStatus().hasCoding()
+                        ? condition.getVerificationStatus().getCodingFirstRep().getCode() : "";
+                String onset = condition.hasOnset() ? condition.getOnset().toString() : "";
+
+                // Build the row
+                sectionNarrative.addRow(conditionText, clinicalStatus, verificationStatus, onset);
+            }
+        }
+
+        if (!hasProblems) {
+            section.setEmptyReason(new CodeableConcept()
+                .addCoding(new Coding()
+                    .setSystem("http://terminology.hl7.org/CodeSystem/list-empty-reason")
+                    .setCode("unavailable"))
+                .setText("No information available."));
+            section.setText(sectionNarrative.buildMessage(Narrative.NarrativeStatus.GENERATED, "No problems or conditions recorded."));
+        } else {
+            section.setText(sectionNarrative.build(Narrative.NarrativeStatus.GENERATED));
+        }
+        return section;
+    }
+
+    /**
+     * Creates a SectionComponent for the Medications section.
+     * This is a placeholder method and should be implemented to retrieve actual medication data.
+     */
+    SectionComponent medicationsSection(PatientDocumentIndex documentIndex, Bundle mhrPsBundle, String mhrPsPatientUuid,
+            NarrativeBuilder.Mode narrativeMode) {
+        SectionComponent section = new SectionComponent();
+        NarrativeBuilder sectionNarrative = new NarrativeBuilder(MEDICATIONS_TABLE, narrativeMode);
+
+        section.setTitle("Medication History");
+        section.setCode(new CodeableConcept().addCoding(
+            new Coding()
+                .setSystem("http://loinc.org")
+                .setCode("10160-0")
+        ));
+
+        boolean hasMedications = false;
+
+        for (PatientDocumentIndex.IndexedEntry entry : getSectionEntries(mhrPsBundle, documentIndex, false, ResourceType.MedicationStatement, ResourceType.MedicationRequest,
+                ResourceType.MedicationDispense, ResourceType.MedicationAdministration)) {
+            DocumentContext document = entry.getDocumentContext();
+            IBaseResource resource = entry.getResource();
+            String medType = null;
+            String medDisplay = "";
+            String status = "";
+            String effective = "";
+            String dosage = "";
+            Medication medicationResource = null;
+
+            // MedicationStatement
+            if (resource instanceof MedicationStatement) {
+                hasMedications = true;
+                medType = "MedicationStatement";
+                MedicationStatement ms = ((MedicationStatement) resource).copy();
+                String msUuid = stableUuid(entry);
+                Reference msReference = new Reference("urn:uuid:" + msUuid);
+                section.addEntry(msReference);
+
+                // Update the patient reference to the MHR PS Patient UUID
+                if (mhrPsPatientUuid != null) {
+                    ms.setSubject(new Reference("urn:uuid:" + mhrPsPatientUuid));
+                }
+
+                ms.setId(msUuid);
+                addEntry(mhrPsBundle, "urn:uuid:" + msUuid, ms);
+
+                // --- Add Provenance resource for this MedicationStatement ---
+                generateProvenance(mhrPsBundle, entry.getDocumentContext(), msUuid);
+
+                // Medication reference or code
+                if (ms.hasMedicationReference()) {
+                    Reference medRef = ms.getMedicationReference();
+                    medDisplay = medRef.getDisplay();
+                    // Try to find Medication resource in the bundle
+                    medicationResource = findAndAddMedicationResource(medRef, document, mhrPsBundle);
+                } else if (ms.hasMedicationCodeableConcept()) {
+                    medDisplay = ms.getMedicationCodeableConcept().getText();
+                }
+                status = ms.hasStatus() ? ms.getStatus().toCode() : "";
+                effective = ms.hasEffective() ? ms.getEffective().toString() : "";
+                if (ms.hasDosage() && !ms.getDosage().isEmpty()) {
+                    dosage = ms.getDosageFirstRep().getText();
+                }
+            }
+
+            // MedicationRequest
+            if (resource instanceof MedicationRequest) {
+                hasMedications = true;
+                medType = "MedicationRequest";
+                MedicationRequest mr = ((MedicationRequest) resource).copy();
+                String mrUuid = stableUuid(entry);
+                Reference mrReference = new Reference("urn:uuid:" + mrUuid);
+                section.addEntry(mrReference);
+
+                // Update the patient reference to the MHR PS Patient UUID
+                if (mhrPsPatientUuid != null) {
+                    mr.setSubject(new Reference("urn:uuid:" + mhrPsPatientUuid));
+                }
+
+                mr.setId(mrUuid);
+                addEntry(mhrPsBundle, "urn:uuid:" + mrUuid, mr);
+
+                // --- Add Provenance resource for this MedicationRequest ---
+                generateProvenance(mhrPsBundle, entry.getDocumentContext(), mrUuid);
+
+                if (mr.hasMedicationReference()) {
+                    Reference medRef = mr.getMedicationReference();
+                    medDisplay = medRef.getDisplay();
+                    medicationResource = findAndAddMedicationResource(medRef, document, mhrPsBundle);
+                } else if (mr.hasMedicationCodeableConcept()) {
+                    medDisplay = mr.getMedicationCodeableConcept().getText();
+                }
+                status = mr.hasStatus() ? mr.getStatus().toCode() : "";
+                effective = mr.hasAuthoredOn() ? mr.getAuthoredOn().toString() : "";
+                if (mr.hasDosageInstruction() && !mr.getDosageInstruction().isEmpty()) {
+                    dosage = mr.getDosageInstructionFirstRep().getText();
+                }
+            }
+
+            // MedicationDispense
+            if (resource instanceof MedicationDispense) {
+                hasMedications = true;
+                medType = "MedicationDispense";
+                MedicationDispense md = ((MedicationDispense) resource).copy();
+                String mdUuid = stableUuid(entry);
+
+                // Update the patient reference to the MHR PS Patient UUID
+                if (mhrPsPatientUuid != null) {
+                    md.setSubject(new Reference("urn:uuid:" + mhrPsPatientUuid));
+                }
+
+                Reference mdReference = new Reference("urn:uuid:" + mdUuid);
+                section.addEntry(mdReference);
+                md.setId(mdUuid);
+                addEntry(mhrPsBundle, "urn:uuid:" + mdUuid, md);
+                
+                // --- Add Provenance resource for this MedicationDispense ---
+                generateProvenance(mhrPsBundle, entry.getDocumentContext(), mdUuid);
+
+                if (md.hasMedicationReference()) {
+                    Reference medRef = md.getMedicationReference();
+                    medDisplay = medRef.getDisplay();
+                    medicationResource = findAndAddMedicationResource(medRef, document, mhrPsBundle);
+                } else if (md.hasMedicationCodeableConcept()) {
+                    medDisplay = md.getMedicationCodeableConcept().getText();
+                }
+                status = md.hasStatus() ? md.getStatus().toCode() : "";
+                effective = md.hasWhenHandedOver() ? md.getWhenHandedOver().toString() : "";
+                if (md.hasDosageInstruction() && !md.getDosageInstruction().isEmpty()) {
+                    dosage = md.getDosageInstructionFirstRep().getText();
+                }
+            }
+
+            // MedicationAdministration
+            if (resource instanceof MedicationAdministration) {
+                hasMedications = true;
+                medType = "MedicationAdministration";
+                MedicationAdministration ma = ((MedicationAdministration) resource).copy();
+                String maUuid = stableUuid(entry);
+
+                // Update the patient reference to the MHR PS Patient UUID
+                if (mhrPsPatientUuid != null) {
+                    ma.setSubject(new Reference("urn:uuid:" + mhrPsPatientUuid));
+                }
+
+                Reference maReference = new Reference("urn:uuid:" + maUuid);
+                section.addEntry(maReference);
+                ma.setId(maUuid);
+                addEntry(mhrPsBundle, "urn:uuid:" + maUuid, ma);
+
+                // --- Add Provenance resource for this MedicationAdministration ---
+                generateProvenance(mhrPsBundle, entry.getDocumentContext(), maUuid);
+
+                if (ma.hasMedicationReference()) {
+                    Reference medRef = ma.getMedicationReference();
+                    medDisplay = medRef.getDisplay();
+                    medicationResource = findAndAddMedicationResource(medRef, document, mhrPsBundle);
+                } else if (ma.hasMedicationCodeableConcept()) {
+                    medDisplay = ma.getMedicationCodeableConcept().getText();
+                }
+                status = ma.hasStatus() ? ma.getStatus().toCode() : "";
+                effective = ma.hasEffective() ? ma.getEffective().toString() : "";
+                if (ma.hasDosage() && ma.getDosage().hasText()) {
+                    dosage = ma.getDosage().getText();
+                }
+            }
+
+            // If a medication resource was found and not already in the bundle, add it
+            // (handled by findAndAddMedicationResource)
+
+            // Only add row if this entry was a medication resource
+            if (medType != null) {
+                sectionNarrative.addRow(medType, medDisplay, status, effective, dosage);
+            }
+        }
+
+        if (hasMedications) {
+            section.setText(sectionNarrative.build(Narrative.NarrativeStatus.GENERATED));
+        } else {
+            section.setEmptyReason(new CodeableConcept()
+                .addCoding(new Coding()
+                    .setSystem("http://terminology.hl7.org/CodeSystem/list-empty-reason")
+                    .setCode("unavailable"))
+                .setText("No information available."));
+            section.setText(sectionNarrative.buildMessage(Narrative.NarrativeStatus.GENERATED, "No medications recorded."));
+        }
+        return section;
+    }
+
+    /**
+     * Helper to find a Medication resource by reference in the given document bundle,
+     * and add it to the MHR PS bundle if not already present.
+     * A Medication is added once per source document, however many medication resources refer to it.
+     */
+    private Medication findAndAddMedicationResource(Reference medRef, DocumentContext document, Bundle mhrPsBundle) {
+        if (medRef == null || medRef.getReference() == null) return null;
+        String ref = medRef.getReference();
+        // Only handle local references (e.g., "Medication/123" or "#med1")
+        String id = null;
+        if (ref.startsWith("Medication/")) {
+            id = ref.substring("Medication/".length());
+        } else if (ref.startsWith("#")) {
+            id = ref.substring(1);
+        }
+        if (id == null) return null;
+
+        // Look up the Medication resource in the document bundle by its original id
+        Medication sourceMed = document.getMedicationById(id);
+        if (sourceMed == null) return null;
+
+        // Add to MHR PS bundle if not already present
+        Map<DocumentContext, Map<String, Medication>> addedMedications = getBundleUserDataMap(mhrPsBundle, ADDED_MEDICATIONS_KEY, IdentityHashMap::new);
+        Map<String, Medication> addedFromDocument = addedMedications.computeIfAbsent(document, k -> new HashMap<>());
+        Medication med = addedFromDocument.get(id);
+        if (med == null) {
+            med = sourceMed.copy();
+            String medUuid = stableUuid(document.getSourceKey(), "Medication", id);
+            med.setId(medUuid);
+            addEntry(mhrPsBundle, "urn:uuid:" + medUuid, med);
+            addedFromDocument.put(id, med);
+        }
+        return med;
+    }
+
+
+    /**
+     * Creates a SectionComponent for the Immunizations section.
+     * This section aggregates Immunization resources from the patient's documents.
+     */
+    SectionComponent immunizationsSection(PatientDocumentIndex documentIndex, Bundle mhrPsBundle, String mhrPsPatientUuid, Date lookbackDate,
+            NarrativeBuilder.Mode narrativeMode) {
+        SectionComponent section = new SectionComponent();
+        NarrativeBuilder sectionNarrative = new NarrativeBuilder(IMMUNIZATIONS_TABLE, narrativeMode);
+
+        section.setTitle("Immunizations History");
+        section.setCode(new CodeableConcept().addCoding(
+            new Coding()
+                .setSystem("http://loinc.org")
+                .setCode("11369-6")
+        ));
+
+        boolean hasImmunizations = false;
+
+        // Only include if occurrenceDateTime is after lookbackDate (if lookbackDate is not null)
+        Predicate<Resource> withinLookback = resource -> {
+            Immunization immunization = (Immunization) resource;
+            if (lookbackDate != null && immunization.hasOccurrenceDateTimeType()) {
+                Date occurrence = immunization.getOccurrenceDateTimeType().getValue();
+                return occurrence != null && !occurrence.before(lookbackDate);
+            }
+            return true;
+        };
+        for (PatientDocumentIndex.IndexedEntry entry : getSectionEntries(mhrPsBundle, documentIndex, false, withinLookback,
+                ResourceType.Immunization)) {
+            IBaseResource resource = entry.getResource();
+            if (resource instanceof Immunization) {
+                Immunization immunization = (Immunization) resource;
+                hasImmunizations = true;
+                String immunizationUuid = stableUuid(entry);
+                String itemUuid = findClinicalItem(mhrPsBundle, immunization, immunizationUuid);
+                if (itemUuid != null) {
+                    // the immunization is summarized from its copy in another document
+                    generateProvenance(mhrPsBundle, entry.getDocumentContext(), itemUuid);
+                    continue;
+                }
+                immunization = immunization.copy();
+
+                // Update the patient reference to the MHR PS Patient UUID
+                if (mhrPsPatientUuid != null) {
+                    immunization.setPatient(new Reference("urn:uuid:" + mhrPsPatientUuid));
+                }
+
+                Reference immunizationReference = new Reference("urn:uuid:" + immunizationUuid);
+                section.addEntry(immunizationReference);
+
+                // Add the Immunization resource to the MHR PS Bundle
+                immunization.setId(immunizationUuid);
+                addEntry(mhrPsBundle, "urn:uuid:" + immunizationUuid, immunization);
+
+                // --- Add Provenance resource for this Immunization ---
+                generateProvenance(mhrPsBundle, entry.getDocumentContext(), immunizationUuid);
+
+                // Build table row for this immunization
+                String vaccineCode = "";
+                if (immunization.hasVaccineCode() && immunization.getVaccineCode().hasCoding()) {
+                    Coding coding = immunization.getVaccineCode().getCodingFirstRep();
+                    vaccineCode = (coding.getSystem() != null ? coding.getSystem() + "|" : "") +
+                            (coding.getCode() != null ? coding.getCode() : "");
+                } else if (immunization.hasVaccineCode() && immunization.getVaccineCode().hasText()) {
+                    vaccineCode = immunization.getVaccineCode().getText();
+                }
+                String occurrenceDate = "";
+                if (immunization.hasOccurrenceDateTimeType()) {
+                    occurrenceDate = NarrativeBuilder.formatDate(immunization.getOccurrenceDateTimeType().getValue());
+                }
+                sectionNarrative.addRow(vaccineCode, occurrenceDate);
+            }
+        }
+
+        if (!hasImmunizations) {
+            section.setEmptyReason(new CodeableConcept()
+                .addCoding(new Coding()
+                    .setSystem("http://terminology.hl7.org/CodeSystem/list-empty-reason")
+                    .setCode("unavailable"))
+                .setText("No information available."));
+            section.setText(sectionNarrative.buildMessage(Narrative.NarrativeStatus.GENERATED, "No immunizations recorded."));
+        } else {
+            section.setText(sectionNarrative.build(Narrative.NarrativeStatus.GENERATED));
+        }
+        return section;
+    }
+
+
+    SectionComponent procedureHistorySection(PatientDocumentIndex documentIndex, Bundle mhrPsBundle,
+            String patientUuid, Date lookbackDate, NarrativeBuilder.Mode narrativeMode) {
+        SectionComponent section = new SectionComponent();
+        NarrativeBuilder sectionNarrative = new NarrativeBuilder(PROCEDURES_TABLE, narrativeMode);
+        section.setTitle("Procedure History");
+        section.setCode(new CodeableConcept().addCoding(
+            new Coding()
+                .setSystem("http://loinc.org")
+                .setCode("47519-4")
+        ));
+        boolean hasProcedures = false;
+        // Only include if performedDateTime is after lookbackDate (if lookbackDate is not null)
+        Predicate<Resource> withinLookback = resource -> {
+            Procedure procedure = (Procedure) resource;
+            if (lookbackDate != null && procedure.hasPerformedDateTimeType()) {
+                Date performed = procedure.getPerformedDateTimeType().getValue();
+                return performed != null && !performed.before(lookbackDate);
+            }
+            return true;
+        };
+        for (PatientDocumentIndex.IndexedEntry entry : getSectionEntries(mhrPsBundle, documentIndex, false, withinLookback,
+                ResourceType.Procedure)) {
+            IBaseResource resource = entry.getResource();
+            if (resource instanceof Procedure) {
+                Procedure procedure = (Procedure) resource;
+                hasProcedures = true;
+                String procedureUuid = stableUuid(entry);
+                String itemUuid = findClinicalItem(mhrPsBundle, procedure, procedureUuid);
+                if (itemUuid != null) {
+                    // the procedure is summarized from its copy in another document
+                    generateProvenance(mhrPsBundle, entry.getDocumentContext(), itemUuid);
+                    continue;
+                }
+                procedure = procedure.copy();
+
+                // Update the patient reference to the MHR PS Patient UUID
+                if (patientUuid != null) {
+                    procedure.setSubject(new Reference("urn:uuid:" + patientUuid));
+                }
+
+                // update the performer of the procedure
+                // check if the performed is in the MhrPsBundle if yes, update the reference
+                // if not, add the performer to the MhrPsBundle
+                if (procedure.hasPerformer()) {
+                    for (Procedure.ProcedurePerformerComponent performer : procedure.getPerformer()) {
+                        if (performer.hasActor() && performer.getActor().getReference() != null) {
+                            String actorRef = performer.getActor().getReference();
+                            // Try to find the performer resource in the MHR PS Bundle
+                            Resource actorResource = entry.getDocumentContext().getResourceByFullUrl(actorRef);
+                            String actorFullUrl = findResourceFullUrlByIdentifier(actorResource, mhrPsBundle);
+                            if (actorFullUrl != null) {
+                                performer.setActor(new Reference(actorFullUrl));
+                            } else {
+                                addEntry(mhrPsBundle, actorRef, actorResource != null ? actorResource.copy() : null);
+                                //performer.setActor(new Reference(actorRef));
+                                
+                            }
+                        }
+                    }
+                }
+
+                Reference procedureReference = new Reference("urn:uuid:" + procedureUuid);
+                section.addEntry(procedureReference);
+
+                // Add the Procedure resource to the MHR PS Bundle
+                procedure.setId(procedureUuid);
+                addEntry(mhrPsBundle, "urn:uuid:" + procedureUuid, procedure);
+
+                // --- Add Provenance resource for this Procedure ---
+                generateProvenance(mhrPsBundle, entry.getDocumentContext(), procedureUuid);
+
+                // Build table row for this procedure
+                String codeText = "";
+                if (procedure.hasCode() && procedure.getCode().hasCoding()) {
+                    Coding coding = procedure.getCode().getCodingFirstRep();
+                    codeText = (coding.getSystem() != null ? coding.getSystem() + "|" : "") +
+                            (coding.getCode() != null ? coding.getCode() : "");
+                } else if (procedure.hasCode() && procedure.getCode().hasText()) {
+                    codeText = procedure.getCode().getText();
+                }
+                String performedDate = "";
+                if (procedure.hasPerformedDateTimeType()) {
+                    performedDate = NarrativeBuilder.formatDate(procedure.getPerformedDateTimeType().getValue());
+                }
+                String status = procedure.hasStatus() ? procedure.getStatus().toCode() : "";
+                sectionNarrative.addRow(codeText, performedDate, status);
+            }
+        }
+
+        if (!hasProcedures) {
+            section.setEmptyReason(new CodeableConcept()
+                .addCoding(new Coding()
+                    .setSystem("http://terminology.hl7.org/CodeSystem/list-empty-reason")
+                    .setCode("unavailable"))
+                .setText("No information available."));
+            section.setText(sectionNarrative.buildMessage(Narrative.NarrativeStatus.GENERATED, "No procedures recorded."));
+        } else {
+            section.setText(sectionNarrative.build(Narrative.NarrativeStatus.GENERATED));
+        }
+        return section;
+    }
+
+
+    /**
+     * Creates a SectionComponent for the Patient Story section.
+     * This section aggregates Goals and Composition narratives from the patient's documents.
+     */
+    SectionComponent patientStorySection(PatientDocumentIndex documentIndex, Bundle mhrPsBundle, String mhrPsPatientUuid,
+            NarrativeBuilder.Mode narrativeMode) {
+        SectionComponent section = new SectionComponent();
+        NarrativeBuilder sectionNarrative = new NarrativeBuilder(narrativeMode);
+        boolean hasPatientStory = false;
+
+        section.setTitle("Patient Story");
+        section.setCode(new CodeableConcept().addCoding(
+            new Coding()
+                .setSystem("http://loinc.org")
+                .setCode("81338-6")
+        ));
+
+        // loop over the patient documents and add any Goal resources to the section
+        // (patient story also reads documents from the excluded system)
+        for (PatientDocumentIndex.IndexedEntry entry : getSectionEntries(mhrPsBundle, documentIndex, true, ResourceType.Goal, ResourceType.Composition)) {
+            IBaseResource resource = entry.getResource();
+            if (resource instanceof Goal) {
+                Goal goal = ((Goal) resource).copy();
+                String goalUuid = stableUuid(entry);
+
+                // Update the patient reference to the MHR PS Patient UUID
+                if (mhrPsPatientUuid != null) {
+                    goal.setSubject(new Reference("urn:uuid:" + mhrPsPatientUuid));
+                    goal.setExpressedBy(new Reference("urn:uuid:" + mhrPsPatientUuid));
+                }
+
+                Reference goalReference = new Reference("urn:uuid:" + goalUuid);
+                section.addEntry(goalReference);
+
+                // Add the Goal resource to the MHR PS Bundle
+                goal.setId(goalUuid);
+                addEntry(mhrPsBundle, "urn:uuid:" + goalUuid, goal);
+
+                // --- Add Provenance resource for this Goal ---
+                generateProvenance(mhrPsBundle, entry.getDocumentContext(), goalUuid);
+            }
+            // else if Resource is Composition, copy the narrative of its Patient Story section into the section narrative
+            else if (resource instanceof Composition) {
+                Composition composition = (Composition) resource;
+                // Find the section with code http://loinc.org|81338-6 and append its narrative
+                if (composition.hasSection()) {
+                    for (SectionComponent sec : composition.getSection()) {
+                        if (sec.hasCode() && sec.getCode().hasCoding()) {
+                            for (Coding coding : sec.getCode().getCoding()) {
+                                if ("http://loinc.org".equals(coding.getSystem()) && "81338-6".equals(coding.getCode())) {
+                                    if (sec.hasText() && sec.getText().hasDiv()) {
+                                        sectionNarrative.addDiv(sec.getText().getDiv());
+                                        hasPatientStory = true;
+                                    }
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+
+        // If no Goals or Composition narratives found, set empty reason
+        if (!hasPatientStory) {
+            section.setEmptyReason(new CodeableConcept()
+                .addCoding(new Coding()
+                    .setSystem("http://terminology.hl7.org/CodeSystem/list-empty-reason")
+                    .setCode("unavailable"))
+                .setText("No information available."));
+            section.setText(sectionNarrative.buildMessage(Narrative.NarrativeStatus.ADDITIONAL, "No patient story recorded."));
+        } else {
+            // Set the narrative text
+            section.setText(sectionNarrative.build(Narrative.NarrativeStatus.ADDITIONAL));
+        }
+
+        return section;
+    }
+
+}
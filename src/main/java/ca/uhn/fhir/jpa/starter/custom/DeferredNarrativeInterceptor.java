@@ -0,0 +1,74 @@
+package ca.uhn.fhir.jpa.starter.custom;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Composition;
+import org.hl7.fhir.r4.model.Composition.SectionComponent;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.ResponseDetails;
+
+/**
+ * Renders the narratives of patient summaries generated with {@code _narrative=deferred} just before the
+ * response is serialized. Responses that leave out the narratives, requested with {@code _summary=data},
+ * {@code _summary=count} or {@code _summary=true}, are not rendered at all.
+ */
+@Component
+@Interceptor
+public class DeferredNarrativeInterceptor implements InitializingBean {
+
+    @Autowired
+    private IInterceptorService interceptorService;
+
+    @Override
+    public void afterPropertiesSet() {
+        interceptorService.registerInterceptor(this);
+    }
+
+    @Hook(Pointcut.SERVER_OUTGOING_RESPONSE)
+    public void outgoingResponse(RequestDetails requestDetails, ResponseDetails responseDetails) {
+        if (responseDetails.getResponseResource() == null || !isNarrativeEncoded(requestDetails)) {
+            return;
+        }
+        render(responseDetails.getResponseResource());
+    }
+
+    private boolean isNarrativeEncoded(RequestDetails requestDetails) {
+        String[] summary = requestDetails.getParameters().get("_summary");
+        if (summary == null) return true;
+        for (String value : summary) {
+            if ("data".equals(value) || "count".equals(value) || "true".equals(value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void render(IBaseResource resource) {
+        if (resource instanceof Bundle) {
+            for (Bundle.BundleEntryComponent entry : ((Bundle) resource).getEntry()) {
+                render(entry.getResource());
+            }
+        } else if (resource instanceof DomainResource) {
+            DomainResource domainResource = (DomainResource) resource;
+            if (domainResource.hasText()) {
+                NarrativeBuilder.renderDeferred(domainResource.getText());
+            }
+            if (resource instanceof Composition) {
+                for (SectionComponent section : ((Composition) resource).getSection()) {
+                    if (section.hasText()) {
+                        NarrativeBuilder.renderDeferred(section.getText());
+                    }
+                }
+            }
+        }
+    }
+}
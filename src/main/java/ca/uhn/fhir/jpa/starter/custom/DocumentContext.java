@@ -0,0 +1,126 @@
+package ca.uhn.fhir.jpa.starter.custom;
+
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Composition;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Medication;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ResourceType;
+
+/**
+ * Indexed state of a single source document Bundle.
+ * Holds the participants of the document by fullUrl and its Medications by id, so references within the
+ * document are resolved without scanning it. The document Bundle itself is not kept, so it can be released
+ * once its entries are indexed. A DocumentContext is not changed once the document is indexed and can be
+ * shared by concurrent requests; the resources it holds must be copied before they are modified.
+ */
+class DocumentContext {
+
+    // the resource types that Composition author/custodian and Procedure performer references can point to
+    private static final Set<ResourceType> PARTICIPANT_TYPES = EnumSet.of(ResourceType.Organization,
+        ResourceType.Patient, ResourceType.RelatedPerson, ResourceType.Device, ResourceType.Practitioner,
+        ResourceType.PractitionerRole);
+
+    private final DocumentVersion version;
+    private final Date timestamp;
+    private final Date documentDate;
+    private final Identifier identifier;
+    private final Map<String, Resource> resourcesByFullUrl = new HashMap<>();
+    private final Map<String, Medication> medicationsById = new HashMap<>();
+    private Composition composition;
+
+    DocumentContext(Bundle document, DocumentVersion version) {
+        this.version = version;
+        this.timestamp = document.getTimestamp();
+        this.identifier = document.hasIdentifier() ? document.getIdentifier() : null;
+        if (document.hasEntry() && document.getEntryFirstRep().getResource() instanceof Composition) {
+            this.composition = (Composition) document.getEntryFirstRep().getResource();
+        }
+        if (composition != null && composition.getDate() != null) {
+            this.documentDate = composition.getDate();
+        } else if (timestamp != null) {
+            this.documentDate = timestamp;
+        } else {
+            this.documentDate = document.getMeta().getLastUpdated();
+        }
+    }
+
+    void addEntry(Bundle.BundleEntryComponent entry) {
+        if (entry.getFullUrl() != null && entry.getResource() != null
+                && PARTICIPANT_TYPES.contains(entry.getResource().getResourceType())) {
+            resourcesByFullUrl.putIfAbsent(entry.getFullUrl(), entry.getResource());
+        }
+        if (entry.getResource() instanceof Medication) {
+            // keyed by the original id, the id is replaced once the Medication is added to the MHR PS Bundle
+            Medication medication = (Medication) entry.getResource();
+            String idPart = medication.getIdElement().getIdPart();
+            if (idPart != null) {
+                medicationsById.putIfAbsent(idPart, medication);
+            }
+        }
+    }
+
+    /**
+     * @return The id and version of the document Bundle, identifies the stored version of the document.
+     */
+    String getSourceKey() {
+        return version.getSourceKey();
+    }
+
+    /**
+     * @return The identity of the document version, tells whether a newer version of the document exists.
+     */
+    DocumentVersion getVersion() {
+        return version;
+    }
+
+    /**
+     * @return The timestamp of the document Bundle, may be null.
+     */
+    Date getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return The date of the document: the date of its Composition, else the timestamp of the Bundle, else the
+     *     time it was last stored. May be null.
+     */
+    Date getDocumentDate() {
+        return documentDate;
+    }
+
+    /**
+     * @return The identifier of the document Bundle, or null if it has none.
+     */
+    Identifier getIdentifier() {
+        return identifier;
+    }
+
+    /**
+     * @return The Composition of the document (its first entry), or null if the document does not start with one.
+     */
+    Composition getComposition() {
+        return composition;
+    }
+
+    /**
+     * @return The participant resource of the entry with the given fullUrl, or null if there is none.
+     */
+    Resource getResourceByFullUrl(String fullUrl) {
+        return fullUrl != null ? resourcesByFullUrl.get(fullUrl) : null;
+    }
+
+    /**
+     * @return The Medication of the document with the given original id, or null if there is none.
+     */
+    Medication getMedicationById(String id) {
+        return medicationsById.get(id);
+    }
+
+}
@@ -0,0 +1,141 @@
+package ca.uhn.fhir.jpa.starter.custom;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Composition;
+import org.hl7.fhir.r4.model.Identifier;
+
+/**
+ * The identity of a stored version of a document, read from its Bundle and Composition only: the identifier
+ * of the Bundle, the version independent identifier of the Composition, the documents it replaces
+ * ({@code Composition.relatesTo} with code {@code replaces}) and its timestamp.
+ * A document is superseded when another document replaces it, or when a document with the same Composition
+ * identifier is more recent, see {@link Registry}.
+ */
+class DocumentVersion {
+
+    private final String sourceKey;
+    private final String documentIdentifier;
+    private final String compositionIdentifier;
+    private final Set<String> replacedIdentifiers;
+    private final long timestamp;
+
+    private DocumentVersion(String sourceKey, String documentIdentifier, String compositionIdentifier,
+            Set<String> replacedIdentifiers, long timestamp) {
+        this.sourceKey = sourceKey;
+        this.documentIdentifier = documentIdentifier;
+        this.compositionIdentifier = compositionIdentifier;
+        this.replacedIdentifiers = replacedIdentifiers;
+        this.timestamp = timestamp;
+    }
+
+    static DocumentVersion of(Bundle document) {
+        Composition composition = document.hasEntry() && document.getEntryFirstRep().getResource() instanceof Composition
+            ? (Composition) document.getEntryFirstRep().getResource() : null;
+
+        String compositionIdentifier = null;
+        Set<String> replacedIdentifiers = Collections.emptySet();
+        long timestamp = document.getTimestamp() != null ? document.getTimestamp().getTime() : 0;
+        if (composition != null) {
+            compositionIdentifier = identifierKey(composition.getIdentifier());
+            for (Composition.CompositionRelatesToComponent relatesTo : composition.getRelatesTo()) {
+                // replaced documents are identified by the identifier of their Bundle or Composition
+                if (relatesTo.getCode() == Composition.DocumentRelationshipType.REPLACES && relatesTo.hasTargetIdentifier()) {
+                    String replacedIdentifier = identifierKey(relatesTo.getTargetIdentifier());
+                    if (replacedIdentifier != null) {
+                        if (replacedIdentifiers.isEmpty()) {
+                            replacedIdentifiers = new HashSet<>();
+                        }
+                        replacedIdentifiers.add(replacedIdentifier);
+                    }
+                }
+            }
+            if (timestamp == 0 && composition.getDate() != null) {
+                timestamp = composition.getDate().getTime();
+            }
+        }
+        return new DocumentVersion(createSourceKey(document), identifierKey(document.getIdentifier()),
+            compositionIdentifier, replacedIdentifiers, timestamp);
+    }
+
+    /**
+     * Finds the superseded documents among the given documents.
+     *
+     * @return The superseded documents, compared by identity.
+     */
+    static Set<DocumentVersion> findSuperseded(List<DocumentVersion> versions) {
+        Registry registry = new Registry();
+        for (DocumentVersion version : versions) {
+            registry.add(version);
+        }
+        Set<DocumentVersion> superseded = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (DocumentVersion version : versions) {
+            if (registry.isSuperseded(version)) {
+                superseded.add(version);
+            }
+        }
+        return superseded;
+    }
+
+    /**
+     * @return The id and version of the document Bundle, identifies the stored version of the document.
+     */
+    String getSourceKey() {
+        return sourceKey;
+    }
+
+    private static String identifierKey(Identifier identifier) {
+        if (identifier == null || !identifier.hasSystem() || !identifier.hasValue()) return null;
+        return identifier.getSystem() + "|" + identifier.getValue();
+    }
+
+    private static String createSourceKey(Bundle document) {
+        if (document.getIdElement().hasIdPart()) {
+            return document.getIdElement().getIdPart() + "/" + document.getIdElement().getVersionIdPart();
+        }
+        // a document that is not stored yet, fall back to its business identifier
+        Identifier documentIdentifier = document.getIdentifier();
+        return documentIdentifier.getSystem() + "|" + documentIdentifier.getValue();
+    }
+
+    /**
+     * The document versions of a patient seen so far. Whether a document is superseded is decided against all
+     * of them, so a document added before the document superseding it is superseded once that one is added.
+     * Not thread safe.
+     */
+    static class Registry {
+        private final Set<String> replacedIdentifiers = new HashSet<>();
+        private final Map<String, DocumentVersion> latestByCompositionIdentifier = new HashMap<>();
+
+        void add(DocumentVersion version) {
+            replacedIdentifiers.addAll(version.replacedIdentifiers);
+            if (version.compositionIdentifier != null) {
+                DocumentVersion latest = latestByCompositionIdentifier.get(version.compositionIdentifier);
+                if (latest == null || version.timestamp > latest.timestamp) {
+                    latestByCompositionIdentifier.put(version.compositionIdentifier, version);
+                }
+            }
+        }
+
+        boolean isEmpty() {
+            return replacedIdentifiers.isEmpty() && latestByCompositionIdentifier.isEmpty();
+        }
+
+        boolean isSuperseded(DocumentVersion version) {
+            if (version.documentIdentifier != null && replacedIdentifiers.contains(version.documentIdentifier)) return true;
+            if (version.compositionIdentifier == null) return false;
+            if (replacedIdentifiers.contains(version.compositionIdentifier)) return true;
+
+            // versions with the same timestamp are both kept
+            DocumentVersion latest = latestByCompositionIdentifier.get(version.compositionIdentifier);
+            return latest != null && latest.timestamp > version.timestamp;
+        }
+    }
+}
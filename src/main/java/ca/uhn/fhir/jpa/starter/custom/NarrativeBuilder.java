@@ -0,0 +1,248 @@
+package ca.uhn.fhir.jpa.starter.custom;
+
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.hl7.fhir.r4.model.Narrative;
+import org.hl7.fhir.utilities.xhtml.NodeType;
+import org.hl7.fhir.utilities.xhtml.XhtmlNode;
+
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+
+/**
+ * Builds narratives as XHTML node trees, so a narrative is never serialized and parsed again while rows are added.
+ * Text is added as text nodes, which are escaped when the narrative is encoded.
+ * How much of a narrative is built depends on the requested {@link Mode}.
+ */
+class NarrativeBuilder {
+
+    /**
+     * How narratives are generated, requested with the {@code _narrative} parameter.
+     */
+    enum Mode {
+        /** No narratives are generated. */
+        NONE,
+        /** Sections only get a one line narrative. */
+        MINIMAL,
+        /** Narratives are generated in full. */
+        FULL,
+        /** Narratives are generated in full once the response is serialized, see {@link DeferredNarrativeInterceptor}. */
+        DEFERRED;
+
+        /**
+         * @return The requested mode, {@link #FULL} if none is requested.
+         * @throws InvalidRequestException If the requested mode is unknown.
+         */
+        static Mode fromParameter(TokenParam parameter) {
+            if (parameter == null || parameter.getValue() == null || parameter.getValue().isEmpty()) {
+                return FULL;
+            }
+            for (Mode mode : values()) {
+                if (mode.name().equalsIgnoreCase(parameter.getValue())) {
+                    return mode;
+                }
+            }
+            throw new InvalidRequestException("Unknown _narrative value '" + parameter.getValue()
+                + "', expected none, minimal, full or deferred.");
+        }
+    }
+
+    private static final String XHTML_NAMESPACE = "http://www.w3.org/1999/xhtml";
+
+    // the pending builder of a deferred narrative
+    private static final String DEFERRED_BUILDER_KEY = NarrativeBuilder.class.getName() + ".deferredBuilder";
+
+    // DateTimeFormatter is thread safe, unlike SimpleDateFormat
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd")
+        .withZone(ZoneId.systemDefault());
+
+    /**
+     * The columns of a narrative table. The header row is built once and copied into every table.
+     */
+    static class TableTemplate {
+        private final XhtmlNode header = new XhtmlNode(NodeType.Element, "thead");
+
+        TableTemplate(String... columns) {
+            XhtmlNode row = header.addTag("tr");
+            for (String column : columns) {
+                row.addTag("th").addText(column);
+            }
+        }
+    }
+
+    private final Mode mode;
+    private final TableTemplate template;
+    // the additions to a deferred narrative, applied once it is rendered
+    private final List<Runnable> deferredAdditions = new ArrayList<>();
+    private XhtmlNode div;
+    private XhtmlNode tableBody;
+    private int rowCount = 0;
+
+    /**
+     * Creates a builder of a free-form narrative.
+     */
+    NarrativeBuilder(Mode mode) {
+        this(null, mode);
+    }
+
+    /**
+     * Creates a builder of a narrative holding a single table with the columns of the template.
+     */
+    NarrativeBuilder(TableTemplate template, Mode mode) {
+        this.mode = mode;
+        this.template = template;
+        if (mode == Mode.FULL) {
+            createDiv();
+        }
+    }
+
+    /**
+     * Adds a table row, null cells are left empty.
+     */
+    NarrativeBuilder addRow(String... cells) {
+        rowCount++;
+        if (mode == Mode.FULL) {
+            appendRow(cells);
+        } else if (mode == Mode.DEFERRED) {
+            deferredAdditions.add(() -> appendRow(cells));
+        }
+        return this;
+    }
+
+    NarrativeBuilder addText(String text) {
+        if (mode == Mode.FULL) {
+            appendText(text);
+        } else if (mode == Mode.DEFERRED) {
+            deferredAdditions.add(() -> appendText(text));
+        }
+        return this;
+    }
+
+    NarrativeBuilder addLabel(String label) {
+        if (mode == Mode.FULL) {
+            appendLabel(label);
+        } else if (mode == Mode.DEFERRED) {
+            deferredAdditions.add(() -> appendLabel(label));
+        }
+        return this;
+    }
+
+    NarrativeBuilder addLineBreak() {
+        if (mode == Mode.FULL) {
+            div.addTag("br");
+        } else if (mode == Mode.DEFERRED) {
+            deferredAdditions.add(() -> div.addTag("br"));
+        }
+        return this;
+    }
+
+    /**
+     * Adds a copy of the div of another narrative, such as a narrative of a source document.
+     * The source narrative must not be changed until this narrative is rendered.
+     */
+    NarrativeBuilder addDiv(XhtmlNode sourceDiv) {
+        rowCount++;
+        if (mode == Mode.FULL) {
+            div.getChildNodes().add(sourceDiv.copy());
+        } else if (mode == Mode.DEFERRED) {
+            deferredAdditions.add(() -> div.getChildNodes().add(sourceDiv.copy()));
+        }
+        return this;
+    }
+
+    /**
+     * @return The narrative, or null if no narrative is requested.
+     */
+    Narrative build(Narrative.NarrativeStatus status) {
+        switch (mode) {
+            case NONE:
+                return null;
+            case MINIMAL:
+                return buildMessage(status, rowCount + (rowCount == 1 ? " entry" : " entries") + " recorded.");
+            case DEFERRED:
+                Narrative narrative = new Narrative();
+                narrative.setStatus(status);
+                narrative.setUserData(DEFERRED_BUILDER_KEY, this);
+                return narrative;
+            default:
+                return createNarrative(status);
+        }
+    }
+
+    /**
+     * Builds a narrative holding a single message, such as the text of an empty section, instead of the table.
+     *
+     * @return The narrative, or null if no narrative is requested.
+     */
+    Narrative buildMessage(Narrative.NarrativeStatus status, String text) {
+        return mode != Mode.NONE ? message(status, text) : null;
+    }
+
+    /**
+     * Creates a narrative holding a single message.
+     */
+    static Narrative message(Narrative.NarrativeStatus status, String text) {
+        return new NarrativeBuilder(Mode.FULL).addText(text).build(status);
+    }
+
+    /**
+     * Renders a narrative built in {@link Mode#DEFERRED} mode. Other narratives are left as they are.
+     */
+    static void renderDeferred(Narrative narrative) {
+        if (narrative == null) return;
+        NarrativeBuilder builder = (NarrativeBuilder) narrative.getUserData(DEFERRED_BUILDER_KEY);
+        if (builder == null) return;
+
+        builder.createDiv();
+        for (Runnable addition : builder.deferredAdditions) {
+            addition.run();
+        }
+        narrative.setDiv(builder.div);
+        narrative.setUserData(DEFERRED_BUILDER_KEY, null);
+    }
+
+    /**
+     * Formats a date as yyyy-MM-dd in the default time zone.
+     *
+     * @return The formatted date, or an empty string if the date is null.
+     */
+    static String formatDate(Date date) {
+        return date != null ? DATE_FORMATTER.format(date.toInstant()) : "";
+    }
+
+    private void appendRow(String[] cells) {
+        XhtmlNode row = tableBody.addTag("tr");
+        for (String cell : cells) {
+            row.addTag("td").addText(cell != null ? cell : "");
+        }
+    }
+
+    private void appendText(String text) {
+        div.addText(text != null ? text : "");
+    }
+
+    private void appendLabel(String label) {
+        div.addTag("b").addText(label);
+    }
+
+    private void createDiv() {
+        div = new XhtmlNode(NodeType.Element, "div");
+        div.setAttribute("xmlns", XHTML_NAMESPACE);
+        if (template != null) {
+            XhtmlNode table = div.addTag("table").setAttribute("border", "1");
+            table.getChildNodes().add(template.header.copy());
+            tableBody = table.addTag("tbody");
+        }
+    }
+
+    private Narrative createNarrative(Narrative.NarrativeStatus status) {
+        Narrative narrative = new Narrative();
+        narrative.setStatus(status);
+        narrative.setDiv(div);
+        return narrative;
+    }
+}
@@ -0,0 +1,36 @@
+package ca.uhn.fhir.jpa.starter.custom;
+
+import java.util.function.IntSupplier;
+
+/**
+ * The number of document Bundles stored for a patient, counted at most once per request. What is cached for
+ * the patient is revalidated against it before it is served, as documents stored on another node or outside
+ * the storage hooks do not evict it.
+ */
+final class PatientDocumentCount {
+
+    /** A count that is never known, such as for a patient without an IHI. */
+    static final PatientDocumentCount UNKNOWN = new PatientDocumentCount(() -> -1);
+
+    private final IntSupplier counter;
+    private boolean counted = false;
+    private int count;
+
+    /**
+     * @param counter Counts the stored documents, only called the first time the count is needed.
+     */
+    PatientDocumentCount(IntSupplier counter) {
+        this.counter = counter;
+    }
+
+    /**
+     * @return The number of stored documents of the patient, excluded documents included, or -1 if it is unknown.
+     */
+    int get() {
+        if (!counted) {
+            count = counter.getAsInt();
+            counted = true;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,208 @@
+package ca.uhn.fhir.jpa.starter.custom;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ResourceType;
+
+/**
+ * Per-request index over the document Bundles of a patient.
+ * The documents are walked once and every entry is grouped by resource type, so each
+ * section generator only visits the entries it is interested in. The same pass fills the
+ * {@link DocumentContext} of every document.
+ * Documents can be added in batches as they are fetched; only the entries of the indexed
+ * resource types are kept, so the rest of a document can be released once it is indexed.
+ * Superseded documents, replaced by an amended version, are left out: a document is not indexed when a newer
+ * version of it was added before, and the entries of a document are no longer returned once a newer version
+ * of it is added, see {@link DocumentVersion}.
+ * An index can be kept for a patient and shared by concurrent requests, see {@link PatientDocumentStateCache}.
+ */
+class PatientDocumentIndex {
+
+    /**
+     * A resource entry together with the source document it was found in.
+     */
+    static class IndexedEntry {
+        private final DocumentContext documentContext;
+        private final Bundle.BundleEntryComponent entry;
+        private final int ordinal;
+
+        IndexedEntry(DocumentContext documentContext, Bundle.BundleEntryComponent entry, int ordinal) {
+            this.documentContext = documentContext;
+            this.entry = entry;
+            this.ordinal = ordinal;
+        }
+
+        DocumentContext getDocumentContext() {
+            return documentContext;
+        }
+
+        Bundle.BundleEntryComponent getEntry() {
+            return entry;
+        }
+
+        Resource getResource() {
+            return entry.getResource();
+        }
+
+        int getOrdinal() {
+            return ordinal;
+        }
+    }
+
+    private final Map<ResourceType, List<IndexedEntry>> entriesByType = new EnumMap<>(ResourceType.class);
+    private final Map<ResourceType, List<IndexedEntry>> excludedEntriesByType = new EnumMap<>(ResourceType.class);
+    private final List<String> documentKeys = new ArrayList<>();
+    private final DocumentVersion.Registry documentVersions = new DocumentVersion.Registry();
+
+    private final String excludedSystem;
+    private final Set<ResourceType> indexedTypes;
+    private int nextOrdinal = 0;
+
+    /**
+     * @param excludedSystem Documents whose identifier has this system are indexed separately.
+     * @param indexedTypes The resource types to index, or null to index all of them.
+     */
+    PatientDocumentIndex(String excludedSystem, Set<ResourceType> indexedTypes) {
+        this.excludedSystem = excludedSystem;
+        this.indexedTypes = indexedTypes;
+    }
+
+    /**
+     * Adds a batch of documents to the index, in document order.
+     *
+     * @param batch The next document Bundles of the patient.
+     */
+    synchronized void addDocuments(List<Bundle> batch) {
+        // documents superseded by one added before are not indexed, but the documents they replace are still
+        // registered, so an older version further down a chain of amendments is superseded as well
+        List<Bundle> documents = new ArrayList<>(batch.size());
+        List<DocumentVersion> versions = new ArrayList<>(batch.size());
+        for (Bundle document : batch) {
+            DocumentVersion version = DocumentVersion.of(document);
+            documentKeys.add(version.getSourceKey());
+            boolean superseded = documentVersions.isSuperseded(version);
+            documentVersions.add(version);
+            if (!superseded) {
+                documents.add(document);
+                versions.add(version);
+            }
+        }
+        for (int i = 0; i < documents.size(); i++) {
+            addDocument(documents.get(i), versions.get(i));
+        }
+    }
+
+    /**
+     * Records a superseded document that is not parsed, so it is known to the index without its entries.
+     */
+    synchronized void addSupersededDocument(DocumentVersion version) {
+        documentKeys.add(version.getSourceKey());
+        documentVersions.add(version);
+    }
+
+    /**
+     * @return The number of documents added to the index.
+     */
+    synchronized int getDocumentCount() {
+        return documentKeys.size();
+    }
+
+    /**
+     * @return The number of entries kept by the index, excluded documents included, weighs the index.
+     */
+    synchronized long getEntryCount() {
+        long entryCount = 0;
+        for (List<IndexedEntry> entries : entriesByType.values()) {
+            entryCount += entries.size();
+        }
+        for (List<IndexedEntry> entries : excludedEntriesByType.values()) {
+            entryCount += entries.size();
+        }
+        return entryCount;
+    }
+
+    /**
+     * @return The id and version of every document added to the index, superseded ones included.
+     */
+    synchronized List<String> getDocumentKeys() {
+        return new ArrayList<>(documentKeys);
+    }
+
+    /**
+     * Returns the entries of the given resource types, skipping documents from the excluded system.
+     */
+    List<IndexedEntry> getEntries(ResourceType... types) {
+        return getEntries(false, types);
+    }
+
+    /**
+     * Returns the entries of the given resource types in original document order.
+     *
+     * @param includeExcludedDocuments Whether entries from documents of the excluded system are returned as well.
+     * @param types The resource types to return.
+     * @return the matching entries, never null.
+     */
+    synchronized List<IndexedEntry> getEntries(boolean includeExcludedDocuments, ResourceType... types) {
+        List<List<IndexedEntry>> slices = new ArrayList<>();
+        for (ResourceType type : types) {
+            addSlice(slices, entriesByType.get(type));
+            if (includeExcludedDocuments) {
+                addSlice(slices, excludedEntriesByType.get(type));
+            }
+        }
+
+        if (slices.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        // return a copy, documents may be added while the caller iterates the entries
+        List<IndexedEntry> merged = new ArrayList<>();
+        for (List<IndexedEntry> slice : slices) {
+            if (documentVersions.isEmpty()) {
+                merged.addAll(slice);
+                continue;
+            }
+            for (IndexedEntry entry : slice) {
+                // skip the entries of documents superseded by a document added later
+                if (!documentVersions.isSuperseded(entry.getDocumentContext().getVersion())) {
+                    merged.add(entry);
+                }
+            }
+        }
+        if (slices.size() > 1) {
+            // several slices are interleaved in the source documents, restore that order
+            merged.sort(Comparator.comparingInt(IndexedEntry::getOrdinal));
+        }
+        return merged;
+    }
+
+    private static void addSlice(List<List<IndexedEntry>> slices, List<IndexedEntry> slice) {
+        if (slice != null && !slice.isEmpty()) {
+            slices.add(slice);
+        }
+    }
+
+    private void addDocument(Bundle document, DocumentVersion version) {
+        boolean excluded = document.hasIdentifier() && excludedSystem.equals(document.getIdentifier().getSystem());
+        Map<ResourceType, List<IndexedEntry>> target = excluded ? excludedEntriesByType : entriesByType;
+        DocumentContext documentContext = new DocumentContext(document, version);
+
+        for (Bundle.BundleEntryComponent entry : document.getEntry()) {
+            Resource resource = entry.getResource();
+            int entryOrdinal = nextOrdinal++;
+            if (resource == null) continue;
+            documentContext.addEntry(entry);
+            if (indexedTypes != null && !indexedTypes.contains(resource.getResourceType())) continue;
+            target.computeIfAbsent(resource.getResourceType(), k -> new ArrayList<>())
+                .add(new IndexedEntry(documentContext, entry, entryOrdinal));
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package ca.uhn.fhir.jpa.starter.custom;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Composition;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.Ordered;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+
+/**
+ * Keeps the indexed documents of recently summarized patients, keyed by IHI, so a summary can be assembled
+ * without searching and parsing the documents again.
+ * This is a cache of the document index, not of the built sections: each request still builds its sections
+ * from the indexed entries of their resource types, applying its own lookbacks and deduplication.
+ * The state of a patient is updated incrementally: a newly stored document Bundle is added to the index once
+ * its transaction commits. Updated or deleted documents drop the state, which is rebuilt on the next request.
+ * Documents stored on another node, or without the storage hooks, are not seen here: a kept index expires after
+ * a time to live, and callers check it against the documents in the database before using it.
+ * The cache is bounded by the number of indexed entries it holds, the least recently used patients are
+ * dropped first.
+ */
+@Component
+@Interceptor
+public class PatientDocumentStateCache implements InitializingBean {
+
+    @Autowired
+    private IInterceptorService interceptorService;
+
+    // maximum number of indexed entries kept over all patients, 0 disables the cache
+    @Value("${mhr.ps.document-state.max-entries:200000}")
+    private long maxEntries;
+
+    // kept indexes are reloaded after this time, to pick up documents changed outside this node
+    @Value("${mhr.ps.document-state.ttl-seconds:300}")
+    private long ttlSeconds;
+
+    // in access order, the least recently used patient first
+    private final Map<String, PatientState> states = new LinkedHashMap<>(16, 0.75f, true);
+
+    // number of indexed entries kept over all patients
+    private long totalEntries = 0;
+
+    @Override
+    public void afterPropertiesSet() {
+        interceptorService.registerInterceptor(this);
+    }
+
+    boolean isEnabled() {
+        return maxEntries > 0;
+    }
+
+    /**
+     * @return The document index kept for the patient, or null if there is none or it has expired.
+     */
+    synchronized PatientDocumentIndex get(String ihi) {
+        PatientState state = states.get(ihi);
+        if (state == null || state.documentIndex == null) return null;
+        if (System.currentTimeMillis() > state.expiresMillis) {
+            invalidate(ihi);
+            return null;
+        }
+        return state.documentIndex;
+    }
+
+    /**
+     * Reserves the state of a patient before their documents are loaded, so documents stored while loading
+     * are not missed.
+     *
+     * @return The version to pass to {@link #complete(String, long, PatientDocumentIndex)}.
+     */
+    synchronized long reserve(String ihi) {
+        return states.computeIfAbsent(ihi, k -> new PatientState()).version;
+    }
+
+    /**
+     * Keeps the loaded document index of a patient, unless a document of the patient was stored or changed
+     * since {@link #reserve(String)} or the index alone exceeds the cache. A reservation that is not kept
+     * is released.
+     *
+     * @param documentIndex The loaded index, or null if loading failed.
+     */
+    synchronized void complete(String ihi, long version, PatientDocumentIndex documentIndex) {
+        PatientState state = states.get(ihi);
+        if (state == null || state.documentIndex != null) return;
+
+        long entries = documentIndex != null ? documentIndex.getEntryCount() : 0;
+        if (documentIndex == null || state.version != version || entries > maxEntries) {
+            states.remove(ihi);
+            return;
+        }
+        state.documentIndex = documentIndex;
+        state.entries = entries;
+        state.expiresMillis = System.currentTimeMillis() + ttlSeconds * 1000;
+        totalEntries += entries;
+        evictToFit();
+    }
+
+    /**
+     * Drops the document index kept for the patient, such as one found to miss documents of the patient.
+     */
+    synchronized void invalidate(String ihi) {
+        if (ihi == null) return;
+        PatientState state = states.remove(ihi);
+        if (state != null) {
+            totalEntries -= state.entries;
+        }
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+    public void resourceCreated(IBaseResource resource) {
+        String ihi = findSubjectIhi(resource);
+        if (ihi != null) {
+            Bundle document = ((Bundle) resource).copy();
+            afterCommit(() -> documentStored(ihi, document), Ordered.HIGHEST_PRECEDENCE);
+        }
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+    public void resourceUpdated(IBaseResource oldResource, IBaseResource newResource) {
+        String oldIhi = findSubjectIhi(oldResource);
+        String newIhi = findSubjectIhi(newResource);
+        afterCommit(() -> {
+            invalidate(oldIhi);
+            invalidate(newIhi);
+        }, Ordered.HIGHEST_PRECEDENCE);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+    public void resourceDeleted(IBaseResource resource) {
+        String ihi = findSubjectIhi(resource);
+        afterCommit(() -> invalidate(ihi), Ordered.HIGHEST_PRECEDENCE);
+    }
+
+    private synchronized void documentStored(String ihi, Bundle document) {
+        PatientState state = states.get(ihi);
+        if (state == null) return;
+
+        state.version++;
+        if (state.documentIndex != null) {
+            state.documentIndex.addDocuments(Collections.singletonList(document));
+            long entries = state.documentIndex.getEntryCount();
+            totalEntries += entries - state.entries;
+            state.entries = entries;
+            evictToFit();
+        }
+    }
+
+    /**
+     * Drops the least recently used indexes until the kept entries fit the cache. Reservations of indexes
+     * still being loaded are kept.
+     */
+    private void evictToFit() {
+        Iterator<PatientState> it = states.values().iterator();
+        while (totalEntries > maxEntries && it.hasNext()) {
+            PatientState state = it.next();
+            if (state.documentIndex != null) {
+                totalEntries -= state.entries;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Runs the action once the current transaction commits, or immediately if there is none. The kept
+     * document indexes are updated first, so caches evicted by the action are not refilled from a stale index.
+     */
+    static void afterCommit(Runnable action) {
+        afterCommit(action, Ordered.LOWEST_PRECEDENCE);
+    }
+
+    private static void afterCommit(Runnable action, int order) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public int getOrder() {
+                    return order;
+                }
+
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        } else {
+            action.run();
+        }
+    }
+
+    /**
+     * Finds the IHI of the subject of a document Bundle, the Patient its Composition refers to.
+     *
+     * @return The IHI, or null if the resource is not a document Bundle or its subject has no IHI.
+     */
+    static String findSubjectIhi(IBaseResource resource) {
+        if (!(resource instanceof Bundle)) return null;
+        Bundle bundle = (Bundle) resource;
+        if (bundle.getType() != Bundle.BundleType.DOCUMENT || !bundle.hasEntry()) return null;
+        if (!(bundle.getEntryFirstRep().getResource() instanceof Composition)) return null;
+
+        String subjectRef = ((Composition) bundle.getEntryFirstRep().getResource()).getSubject().getReference();
+        if (subjectRef == null) return null;
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            Resource entryResource = entry.getResource();
+            if (entryResource instanceof Patient && subjectRef.equals(entry.getFullUrl())) {
+                return CustomBundleProvider.getIhi((Patient) entryResource);
+            }
+        }
+        return null;
+    }
+
+    private static class PatientState {
+        private long version = 0;
+        private PatientDocumentIndex documentIndex;
+        private long entries = 0;
+        private long expiresMillis;
+    }
+}
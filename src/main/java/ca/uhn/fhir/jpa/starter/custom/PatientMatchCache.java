@@ -0,0 +1,249 @@
+package ca.uhn.fhir.jpa.starter.custom;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Patient;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.model.api.TemporalPrecisionEnum;
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.ParamPrefixEnum;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.util.StringUtil;
+
+/**
+ * Bounded cache of the ids of the Patients found by identifier, per tenant, so the identifier is not searched
+ * again for every request. Only ids are kept: the Patients are read again with the request of each caller, so
+ * authorization and the other interceptors of the server apply to every request, and the birthdate, family
+ * name and gender of the request are then verified against them in memory.
+ * Identifiers that match no patient or several patients are cached as well, for a shorter time.
+ * Entries are evicted least recently used first, after a time to live, and whenever a Patient with the same
+ * identifier is created, updated or deleted in any tenant.
+ */
+@Component
+@Interceptor
+public class PatientMatchCache implements InitializingBean {
+
+    private static final String GENDER_SYSTEM = "http://hl7.org/fhir/administrative-gender";
+
+    @Autowired
+    private IInterceptorService interceptorService;
+
+    // maximum number of cached identifiers, 0 disables the cache
+    @Value("${mhr.ps.patient-match.max-entries:10000}")
+    private int maxEntries;
+
+    @Value("${mhr.ps.patient-match.ttl-seconds:300}")
+    private long ttlSeconds;
+
+    // identifiers matching no patient or several patients are kept for a shorter time
+    @Value("${mhr.ps.patient-match.negative-ttl-seconds:30}")
+    private long negativeTtlSeconds;
+
+    // the matches of each identifier, by tenant
+    private final Map<String, Map<String, CachedMatch>> cache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Map<String, CachedMatch>> eldest) {
+            return size() > maxEntries;
+        }
+    };
+
+    // number of Patient changes seen, so a search that ran while a Patient changed is not cached
+    private long changeCount = 0;
+
+    @Override
+    public void afterPropertiesSet() {
+        interceptorService.registerInterceptor(this);
+    }
+
+    boolean isEnabled() {
+        return maxEntries > 0;
+    }
+
+    /**
+     * Creates the cache key of an identifier.
+     *
+     * @return The key, or null if the identifier cannot be cached as it has no system.
+     */
+    static String createKey(String system, String value) {
+        if (system == null || system.isEmpty() || value == null) return null;
+        return system + "|" + value;
+    }
+
+    /**
+     * @param tenantId The tenant of the request, may be null.
+     * @return The ids of the Patients found with the identifier in the tenant, or null if the identifier is not
+     *     cached or has expired.
+     */
+    synchronized List<IIdType> get(String tenantId, String key) {
+        Map<String, CachedMatch> tenantMatches = cache.get(key);
+        CachedMatch cached = tenantMatches != null ? tenantMatches.get(tenantKey(tenantId)) : null;
+        if (cached == null) return null;
+        if (System.currentTimeMillis() > cached.expiresMillis) {
+            tenantMatches.remove(tenantKey(tenantId));
+            return null;
+        }
+        return cached.patientIds;
+    }
+
+    /**
+     * Reserves an entry before the Patients are searched, so a Patient changed while searching is not missed.
+     *
+     * @return The version to pass to {@link #put(String, String, List, long)}.
+     */
+    synchronized long reserve() {
+        return changeCount;
+    }
+
+    /**
+     * Caches the ids of the Patients found with the identifier in the tenant, unless a Patient changed since
+     * {@link #reserve()}. The Patients must have been searched without the restrictions of a single caller.
+     *
+     * @param tenantId The tenant the Patients were searched in, may be null.
+     */
+    synchronized void put(String tenantId, String key, List<Patient> patients, long version) {
+        if (maxEntries <= 0 || key == null || version != changeCount) return;
+
+        List<IIdType> patientIds = new ArrayList<>(patients.size());
+        for (Patient patient : patients) {
+            patientIds.add(patient.getIdElement().toUnqualifiedVersionless());
+        }
+        long ttl = patients.size() == 1 ? ttlSeconds : negativeTtlSeconds;
+        cache.computeIfAbsent(key, k -> new HashMap<>())
+            .put(tenantKey(tenantId), new CachedMatch(List.copyOf(patientIds), System.currentTimeMillis() + ttl * 1000));
+    }
+
+    /**
+     * Evicts an identifier in every tenant, such as when a cached Patient can no longer be read.
+     */
+    void invalidate(String key) {
+        evict(List.of(key));
+    }
+
+    /**
+     * Checks whether the demographic parameters can be verified in memory by {@link #matches}. Modifiers,
+     * date prefixes other than eq and date times are left to the database.
+     */
+    static boolean canMatch(DateParam birthdate, StringParam family, TokenParam gender) {
+        if (birthdate != null && !birthdate.isEmpty()) {
+            if (birthdate.getPrefix() != null && birthdate.getPrefix() != ParamPrefixEnum.EQUAL) return false;
+            if (birthdate.getPrecision() == null || birthdate.getPrecision().ordinal() > TemporalPrecisionEnum.DAY.ordinal()) return false;
+        }
+        if (family != null && !family.isEmpty()) {
+            if (family.getMissing() != null || family.isText()) return false;
+        }
+        if (gender != null && !gender.isEmpty()) {
+            if (gender.getModifier() != null || gender.getMissing() != null) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Verifies the demographic parameters against a Patient, the way the Patient search parameters do:
+     * the birthdate within the given date, a family name starting with, containing or, with {@code :exact},
+     * equal to the given name, and the gender code.
+     */
+    static boolean matches(Patient patient, DateParam birthdate, StringParam family, TokenParam gender) {
+        if (birthdate != null && !birthdate.isEmpty()) {
+            // a date of lower precision covers every birthdate starting with it
+            String patientBirthdate = patient.getBirthDateElement().getValueAsString();
+            if (patientBirthdate == null || !patientBirthdate.startsWith(birthdate.getValueAsString())) return false;
+        }
+        if (family != null && !family.isEmpty() && !matchesFamily(patient, family)) {
+            return false;
+        }
+        if (gender != null && !gender.isEmpty()) {
+            if (gender.getSystem() != null && !GENDER_SYSTEM.equals(gender.getSystem())) return false;
+            AdministrativeGender patientGender = patient.getGender();
+            if (patientGender == null || !patientGender.toCode().equals(gender.getValue())) return false;
+        }
+        return true;
+    }
+
+    private static boolean matchesFamily(Patient patient, StringParam family) {
+        String value = family.isExact() ? family.getValue() : StringUtil.normalizeStringForSearchIndexing(family.getValue());
+        for (HumanName name : patient.getName()) {
+            if (!name.hasFamily()) continue;
+            if (family.isExact()) {
+                if (name.getFamily().equals(value)) return true;
+                continue;
+            }
+            String patientFamily = StringUtil.normalizeStringForSearchIndexing(name.getFamily());
+            if (family.isContains() ? patientFamily.contains(value) : patientFamily.startsWith(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+    public void resourceCreated(IBaseResource resource) {
+        evictFor(resource);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+    public void resourceUpdated(IBaseResource oldResource, IBaseResource newResource) {
+        evictFor(oldResource);
+        evictFor(newResource);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+    public void resourceDeleted(IBaseResource resource) {
+        evictFor(resource);
+    }
+
+    /**
+     * Evicts the identifiers of a changed Patient now, and again once the change commits, so a search that
+     * read the Patient before the commit is not served afterwards.
+     */
+    private void evictFor(IBaseResource resource) {
+        if (!(resource instanceof Patient)) return;
+        List<String> keys = new ArrayList<>();
+        for (Identifier identifier : ((Patient) resource).getIdentifier()) {
+            String key = createKey(identifier.getSystem(), identifier.getValue());
+            if (key != null) {
+                keys.add(key);
+            }
+        }
+        evict(keys);
+        PatientDocumentStateCache.afterCommit(() -> evict(keys));
+    }
+
+    private synchronized void evict(List<String> keys) {
+        changeCount++;
+        for (String key : keys) {
+            cache.remove(key);
+        }
+    }
+
+    private static String tenantKey(String tenantId) {
+        return tenantId != null ? tenantId : "";
+    }
+
+    private static class CachedMatch {
+        private final List<IIdType> patientIds;
+        private final long expiresMillis;
+
+        private CachedMatch(List<IIdType> patientIds, long expiresMillis) {
+            this.patientIds = patientIds;
+            this.expiresMillis = expiresMillis;
+        }
+    }
+}
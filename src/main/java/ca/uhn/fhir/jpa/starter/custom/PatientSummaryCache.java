@@ -0,0 +1,235 @@
+package ca.uhn.fhir.jpa.starter.custom;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+
+/**
+ * Bounded cache of generated patient summaries, keyed by patient IHI, content code and requested sections.
+ * Entries are evicted least recently used first, after a time to live, and whenever a document Bundle or
+ * Patient with the same IHI is created, updated or deleted: when the change is stored and again once it
+ * commits, as a summary generated in between may still be based on the documents before the change.
+ * Each summary keeps the version of the Patient and the number of stored documents it was generated from,
+ * so a change the hooks did not see, such as one made on another node, is detected before it is served.
+ */
+@Component
+@Interceptor
+public class PatientSummaryCache implements InitializingBean {
+
+    @Autowired
+    private IInterceptorService interceptorService;
+
+    // maximum number of cached summaries, 0 disables the cache
+    @Value("${mhr.ps.summary-cache.max-entries:1000}")
+    private int maxEntries;
+
+    // cached summaries are regenerated after this time, as the default section lookbacks move with the clock
+    @Value("${mhr.ps.summary-cache.ttl-seconds:600}")
+    private long ttlSeconds;
+
+    private final Map<String, CachedSummary> cache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedSummary> eldest) {
+            return size() > maxEntries;
+        }
+    };
+
+    // number of changes seen, so a summary generated while a document or Patient changed is not cached
+    private long changeCount = 0;
+
+    @Override
+    public void afterPropertiesSet() {
+        interceptorService.registerInterceptor(this);
+    }
+
+    /**
+     * Creates the cache key of a summary request. The section lookbacks are normalized so that the order
+     * they were requested in does not matter. Summaries with different narrative modes are cached apart.
+     */
+    String createKey(String ihi, TokenParam contentCode, List<Map.Entry<TokenParam, DateParam>> sectionLookbacks,
+            NarrativeBuilder.Mode narrativeMode) {
+        Set<String> sections = new TreeSet<>();
+        if (sectionLookbacks != null) {
+            for (Map.Entry<TokenParam, DateParam> entry : sectionLookbacks) {
+                DateParam lookback = entry.getValue();
+                String lookbackValue = "";
+                if (lookback != null && !lookback.isEmpty()) {
+                    lookbackValue = (lookback.getPrefix() != null ? lookback.getPrefix().getValue() : "")
+                        + lookback.getValueAsString();
+                }
+                sections.add(entry.getKey().getSystem() + "|" + entry.getKey().getValue() + "$" + lookbackValue);
+            }
+        }
+        return ihi + " " + contentCode.getSystem() + "|" + contentCode.getValue() + " " + String.join(",", sections)
+            + " " + narrativeMode;
+    }
+
+    /**
+     * @return The cached summary with its ETag, or null if there is none or it has expired.
+     */
+    synchronized CachedSummary get(String key) {
+        if (maxEntries <= 0) return null;
+
+        CachedSummary cached = cache.get(key);
+        if (cached == null) return null;
+        if (System.currentTimeMillis() - cached.createdMillis > ttlSeconds * 1000) {
+            cache.remove(key);
+            return null;
+        }
+        return cached;
+    }
+
+    /**
+     * Reserves an entry before the documents of the summary are read, so a change made while it is generated
+     * is not missed.
+     *
+     * @return The version to pass to {@link #put(String, String, Bundle, String, String, int, long)}.
+     */
+    synchronized long reserve() {
+        return changeCount;
+    }
+
+    /**
+     * Caches a copy of the summary, so later changes to the returned Bundle do not affect the cache, unless
+     * a document or Patient changed since {@link #reserve()}.
+     *
+     * @param patientVersion The version of the Patient the summary was generated for.
+     * @param documentCount The number of stored documents of the patient, counted before they were read.
+     */
+    synchronized void put(String key, String ihi, Bundle summary, String etag, String patientVersion,
+            int documentCount, long version) {
+        if (maxEntries <= 0 || version != changeCount || documentCount < 0) return;
+        cache.put(key, new CachedSummary(ihi, summary.copy(), etag, patientVersion, documentCount));
+    }
+
+    /**
+     * Evicts every cached summary of the patient with the given IHI.
+     */
+    synchronized void evict(String ihi) {
+        if (ihi == null) return;
+        changeCount++;
+        Iterator<CachedSummary> it = cache.values().iterator();
+        while (it.hasNext()) {
+            if (ihi.equals(it.next().ihi)) {
+                it.remove();
+            }
+        }
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+    public void resourceCreated(IBaseResource resource) {
+        evictFor(resource);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+    public void resourceUpdated(IBaseResource oldResource, IBaseResource newResource) {
+        evictFor(oldResource);
+        evictFor(newResource);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+    public void resourceDeleted(IBaseResource resource) {
+        evictFor(resource);
+    }
+
+    /**
+     * Evicts the summaries of the patients a changed resource relates to now, and again once the change
+     * commits, so a summary generated from the documents read before the commit is not served afterwards.
+     */
+    private void evictFor(IBaseResource resource) {
+        List<String> ihis = findIhis(resource);
+        if (ihis.isEmpty()) return;
+        for (String ihi : ihis) {
+            evict(ihi);
+        }
+        PatientDocumentStateCache.afterCommit(() -> {
+            for (String ihi : ihis) {
+                evict(ihi);
+            }
+        });
+    }
+
+    /**
+     * Finds the IHIs a stored resource relates to: the IHI of a Patient, or the IHIs of the Patients
+     * in a document Bundle.
+     */
+    private List<String> findIhis(IBaseResource resource) {
+        List<String> ihis = new ArrayList<>();
+        if (resource instanceof Patient) {
+            addIhi(ihis, (Patient) resource);
+        } else if (resource instanceof Bundle && ((Bundle) resource).getType() == Bundle.BundleType.DOCUMENT) {
+            for (Bundle.BundleEntryComponent entry : ((Bundle) resource).getEntry()) {
+                if (entry.getResource() instanceof Patient) {
+                    addIhi(ihis, (Patient) entry.getResource());
+                }
+            }
+        }
+        return ihis;
+    }
+
+    private void addIhi(List<String> ihis, Patient patient) {
+        String ihi = CustomBundleProvider.getIhi(patient);
+        if (ihi != null) {
+            ihis.add(ihi);
+        }
+    }
+
+    /**
+     * A cached summary and its ETag. The cached Bundle is never changed, every request gets its own copy.
+     */
+    static final class CachedSummary {
+        private final String ihi;
+        private final Bundle summary;
+        private final String etag;
+        private final String patientVersion;
+        private final int documentCount;
+        private final long createdMillis = System.currentTimeMillis();
+
+        private CachedSummary(String ihi, Bundle summary, String etag, String patientVersion, int documentCount) {
+            this.ihi = ihi;
+            this.summary = summary;
+            this.etag = etag;
+            this.patientVersion = patientVersion;
+            this.documentCount = documentCount;
+        }
+
+        String getETag() {
+            return etag;
+        }
+
+        /**
+         * @return A copy of the summary, so changes to it do not affect the cache.
+         */
+        Bundle copySummary() {
+            return summary.copy();
+        }
+
+        /**
+         * Checks the summary against the current Patient and number of stored documents, as counted by
+         * {@link PatientDocumentCount}.
+         */
+        boolean isCurrent(String patientVersion, int documentCount) {
+            return Objects.equals(this.patientVersion, patientVersion) && this.documentCount == documentCount;
+        }
+    }
+}
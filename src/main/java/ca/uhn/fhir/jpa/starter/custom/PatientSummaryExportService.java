@@ -0,0 +1,483 @@
+package ca.uhn.fhir.jpa.starter.custom;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.hl7.fhir.r4.model.InstantType;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+
+/**
+ * Runs asynchronous exports of the patient summaries of many patients, in the style of the bulk data
+ * {@code $export} operation. The patients of a job are split into batches of {@code mhr.ps.export.batch-size}
+ * IHIs, which are generated on a fixed pool of {@code mhr.ps.export.threads} workers and written as NDJSON files
+ * to a directory per job.
+ * A batch is written to a temporary file and moved into place once it is complete, so the files of a job are its
+ * checkpoint: jobs that did not finish are resumed from their first missing batch, see {@link #resumeJobs}.
+ * A job and its files are deleted {@code mhr.ps.export.retention-seconds} after it finished, or when it is
+ * cancelled, see {@link #delete}.
+ * The number of patients processed per second is reported with the progress of a job, no throughput is enforced.
+ * A job keeps the tenant of the request that started it, its summaries are generated in that tenant and its
+ * files are only served to requests of the same tenant.
+ */
+@Component
+public class PatientSummaryExportService implements InitializingBean, DisposableBean {
+
+    private static final Logger ourLog = LoggerFactory.getLogger(PatientSummaryExportService.class);
+
+    private static final String JOB_FILE = "job.properties";
+    private static final String PATIENTS_FILE = "patients.txt";
+
+    /**
+     * Generates the summaries of a batch of patients.
+     */
+    @FunctionalInterface
+    interface SummaryGenerator {
+        /**
+         * @param ihis The IHIs of the patients.
+         * @param tenantId The tenant of the job, may be null.
+         * @return For each IHI, in order, the summary Bundle or an OperationOutcome explaining why there is none.
+         */
+        Map<String, Resource> generate(List<String> ihis, String tenantId);
+    }
+
+    @Autowired
+    private FhirContext fhirContext;
+
+    // the directory the jobs are written to, one sub directory per job
+    @Value("${mhr.ps.export.directory:mhr-ps-export}")
+    private String exportDirectory;
+
+    // number of batches generated concurrently
+    @Value("${mhr.ps.export.threads:4}")
+    private int threads;
+
+    // number of patients looked up and written together
+    @Value("${mhr.ps.export.batch-size:50}")
+    private int batchSize;
+
+    // finished jobs are deleted with their files after this time, 0 keeps them
+    @Value("${mhr.ps.export.retention-seconds:86400}")
+    private long retentionSeconds;
+
+    private final Map<String, ExportJob> jobs = new ConcurrentHashMap<>();
+    private ExecutorService executor;
+    // deletes the jobs once their retention is over
+    private ScheduledExecutorService cleaner;
+
+    @Override
+    public void afterPropertiesSet() {
+        executor = Executors.newFixedThreadPool(threads);
+        cleaner = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @Override
+    public void destroy() {
+        executor.shutdownNow();
+        cleaner.shutdownNow();
+    }
+
+    /**
+     * Starts a job exporting the summaries of the given patients.
+     *
+     * @param tenantId The tenant of the request starting the job, may be null.
+     * @return The id of the job.
+     */
+    String start(List<String> ihis, String tenantId, SummaryGenerator generator) throws IOException {
+        String jobId = UUID.randomUUID().toString();
+        Path jobDirectory = Paths.get(exportDirectory, jobId);
+        Files.createDirectories(jobDirectory);
+        Files.write(jobDirectory.resolve(PATIENTS_FILE), ihis, StandardCharsets.UTF_8);
+
+        Properties jobProperties = new Properties();
+        jobProperties.setProperty("batchSize", Integer.toString(batchSize));
+        jobProperties.setProperty("transactionTime", new InstantType(new Date()).getValueAsString());
+        if (tenantId != null) {
+            jobProperties.setProperty("tenantId", tenantId);
+        }
+        try (Writer writer = Files.newBufferedWriter(jobDirectory.resolve(JOB_FILE), StandardCharsets.UTF_8)) {
+            jobProperties.store(writer, null);
+        }
+
+        ExportJob job = new ExportJob(jobId, jobDirectory, ihis, batchSize, jobProperties.getProperty("transactionTime"),
+            tenantId);
+        jobs.put(jobId, job);
+        submit(job, generator);
+        return jobId;
+    }
+
+    /**
+     * Resumes the jobs in the export directory that did not finish, such as jobs interrupted by a restart.
+     * Finished jobs are kept until their retention is over, counted from their last written file.
+     */
+    void resumeJobs(SummaryGenerator generator) {
+        Path root = Paths.get(exportDirectory);
+        if (!Files.isDirectory(root)) return;
+
+        try (DirectoryStream<Path> jobDirectories = Files.newDirectoryStream(root, Files::isDirectory)) {
+            for (Path jobDirectory : jobDirectories) {
+                String jobId = jobDirectory.getFileName().toString();
+                if (jobs.containsKey(jobId) || !Files.exists(jobDirectory.resolve(JOB_FILE))) continue;
+
+                Properties jobProperties = new Properties();
+                try (Reader reader = Files.newBufferedReader(jobDirectory.resolve(JOB_FILE), StandardCharsets.UTF_8)) {
+                    jobProperties.load(reader);
+                }
+                List<String> ihis = Files.readAllLines(jobDirectory.resolve(PATIENTS_FILE), StandardCharsets.UTF_8);
+                ExportJob job = new ExportJob(jobId, jobDirectory, ihis,
+                    Integer.parseInt(jobProperties.getProperty("batchSize")), jobProperties.getProperty("transactionTime"),
+                    jobProperties.getProperty("tenantId"));
+                jobs.put(jobId, job);
+                submit(job, generator);
+                if (job.isFinished()) {
+                    scheduleExpiry(job);
+                } else {
+                    ourLog.info("Resumed patient summary export {} at {} of {} patients", jobId,
+                        job.getProcessedPatients(), job.getTotalPatients());
+                }
+            }
+        } catch (IOException e) {
+            ourLog.error("Unable to resume the patient summary exports in {}", root, e);
+        }
+    }
+
+    /**
+     * @return The job with the given id, or null if there is none.
+     */
+    ExportJob getJob(String jobId) {
+        return jobs.get(jobId);
+    }
+
+    /**
+     * Cancels a job if it is still running and deletes it with its files. Batches being generated are not
+     * interrupted, but their files are not written.
+     *
+     * @return Whether there was such a job.
+     */
+    boolean delete(String jobId) {
+        ExportJob job = jobs.remove(jobId);
+        if (job == null) return false;
+        job.cancel();
+
+        // the job file goes first, so a directory that is not deleted completely is not resumed
+        try {
+            Files.deleteIfExists(job.jobDirectory.resolve(JOB_FILE));
+            try (Stream<Path> files = Files.walk(job.jobDirectory)) {
+                for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        } catch (IOException e) {
+            ourLog.warn("Unable to delete the files of patient summary export {} in {}", jobId, job.jobDirectory, e);
+        }
+        return true;
+    }
+
+    private void scheduleExpiry(ExportJob job) {
+        if (retentionSeconds <= 0) return;
+        long delayMillis = job.getEndMillis() + TimeUnit.SECONDS.toMillis(retentionSeconds) - System.currentTimeMillis();
+        cleaner.schedule(() -> delete(job.getJobId()), Math.max(delayMillis, 0), TimeUnit.MILLISECONDS);
+    }
+
+    private void submit(ExportJob job, SummaryGenerator generator) throws IOException {
+        for (int batch = 0; batch < job.getBatchCount(); batch++) {
+            if (Files.exists(job.getSummaryFile(batch))) {
+                // written before the job was interrupted
+                job.batchResumed(job.getBatch(batch).size(), countLines(job.getErrorFile(batch)),
+                    Files.getLastModifiedTime(job.getSummaryFile(batch)).toMillis());
+                continue;
+            }
+            int batchNumber = batch;
+            job.batchFutures.add(executor.submit(() -> runBatch(job, batchNumber, generator)));
+        }
+    }
+
+    private void runBatch(ExportJob job, int batch, SummaryGenerator generator) {
+        if (job.isCancelled()) return;
+        List<String> ihis = job.getBatch(batch);
+        try {
+            Map<String, Resource> summaries = generator.generate(ihis, job.getTenantId());
+            if (job.isCancelled()) return;
+
+            IParser parser = fhirContext.newJsonParser().setPrettyPrint(false);
+            Path summaryTemp = job.getSummaryFile(batch).resolveSibling(job.getSummaryFile(batch).getFileName() + ".tmp");
+            Path errorTemp = job.getErrorFile(batch).resolveSibling(job.getErrorFile(batch).getFileName() + ".tmp");
+            int errors = 0;
+            try (Writer summaryWriter = Files.newBufferedWriter(summaryTemp, StandardCharsets.UTF_8);
+                    Writer errorWriter = Files.newBufferedWriter(errorTemp, StandardCharsets.UTF_8)) {
+                for (Resource summary : summaries.values()) {
+                    Writer writer = summary instanceof OperationOutcome ? errorWriter : summaryWriter;
+                    parser.encodeResourceToWriter(summary, writer);
+                    writer.write('\n');
+                    if (summary instanceof OperationOutcome) {
+                        errors++;
+                    }
+                }
+            }
+
+            // the summary file marks the batch as complete, so it is moved last
+            if (errors > 0) {
+                Files.move(errorTemp, job.getErrorFile(batch), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } else {
+                Files.delete(errorTemp);
+            }
+            Files.move(summaryTemp, job.getSummaryFile(batch), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (job.batchCompleted(ihis.size(), errors)) {
+                scheduleExpiry(job);
+            }
+        } catch (Exception e) {
+            if (job.isCancelled()) {
+                // the directory of the job was deleted while the batch was written
+                ourLog.debug("Patient summary export {} was cancelled in batch {}", job.getJobId(), batch, e);
+                return;
+            }
+            ourLog.error("Patient summary export {} failed in batch {}", job.getJobId(), batch, e);
+            if (job.batchFailed(e)) {
+                scheduleExpiry(job);
+            }
+        }
+    }
+
+    private static int countLines(Path file) {
+        if (!Files.exists(file)) return 0;
+        try (Stream<String> lines = Files.lines(file, StandardCharsets.UTF_8)) {
+            return (int) lines.count();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * The state and progress counters of an export job.
+     */
+    static class ExportJob {
+        private final String jobId;
+        private final Path jobDirectory;
+        private final List<String> ihis;
+        private final int batchSize;
+        private final String transactionTime;
+        private final String tenantId;
+        private final long startMillis = System.currentTimeMillis();
+        private final AtomicInteger completedBatches = new AtomicInteger();
+        private final AtomicInteger failedBatches = new AtomicInteger();
+        private final AtomicInteger processedPatients = new AtomicInteger();
+        private final AtomicInteger failedPatients = new AtomicInteger();
+        private final AtomicInteger resumedPatients = new AtomicInteger();
+        private final AtomicInteger resumedBatches = new AtomicInteger();
+        private final List<String> batchErrors = new ArrayList<>();
+        private final List<Future<?>> batchFutures = new CopyOnWriteArrayList<>();
+        private volatile long endMillis = 0;
+        private volatile long lastResumedMillis = 0;
+        private volatile boolean cancelled = false;
+
+        private ExportJob(String jobId, Path jobDirectory, List<String> ihis, int batchSize, String transactionTime,
+                String tenantId) {
+            this.jobId = jobId;
+            this.jobDirectory = jobDirectory;
+            this.ihis = ihis;
+            this.batchSize = batchSize;
+            this.transactionTime = transactionTime;
+            this.tenantId = tenantId;
+        }
+
+        String getJobId() {
+            return jobId;
+        }
+
+        String getTransactionTime() {
+            return transactionTime;
+        }
+
+        /**
+         * @return The tenant of the request that started the job, or null if there is none.
+         */
+        String getTenantId() {
+            return tenantId;
+        }
+
+        int getBatchCount() {
+            return (ihis.size() + batchSize - 1) / batchSize;
+        }
+
+        List<String> getBatch(int batch) {
+            return ihis.subList(batch * batchSize, Math.min((batch + 1) * batchSize, ihis.size()));
+        }
+
+        Path getSummaryFile(int batch) {
+            return jobDirectory.resolve("summaries-" + batch + ".ndjson");
+        }
+
+        Path getErrorFile(int batch) {
+            return jobDirectory.resolve("errors-" + batch + ".ndjson");
+        }
+
+        int getTotalPatients() {
+            return ihis.size();
+        }
+
+        int getProcessedPatients() {
+            return processedPatients.get();
+        }
+
+        int getFailedPatients() {
+            return failedPatients.get();
+        }
+
+        /**
+         * @return The number of patients processed per second since the job was started or resumed.
+         */
+        double getPatientsPerSecond() {
+            long end = endMillis != 0 ? endMillis : System.currentTimeMillis();
+            double seconds = Math.max(end - startMillis, 1) / 1000.0;
+            return (processedPatients.get() - resumedPatients.get()) / seconds;
+        }
+
+        /**
+         * @return Whether every batch was written.
+         */
+        boolean isComplete() {
+            return completedBatches.get() == getBatchCount();
+        }
+
+        /**
+         * @return Whether every batch was written or failed.
+         */
+        boolean isFinished() {
+            return completedBatches.get() + failedBatches.get() == getBatchCount();
+        }
+
+        /**
+         * @return The files of the batches written so far.
+         */
+        List<Path> getSummaryFiles() {
+            List<Path> files = new ArrayList<>();
+            for (int batch = 0; batch < getBatchCount(); batch++) {
+                if (Files.exists(getSummaryFile(batch))) {
+                    files.add(getSummaryFile(batch));
+                }
+            }
+            return files;
+        }
+
+        /**
+         * @return The error files of the batches written so far.
+         */
+        List<Path> getErrorFiles() {
+            List<Path> files = new ArrayList<>();
+            for (int batch = 0; batch < getBatchCount(); batch++) {
+                if (Files.exists(getErrorFile(batch))) {
+                    files.add(getErrorFile(batch));
+                }
+            }
+            return files;
+        }
+
+        /**
+         * @return The written summary or error file with the given name, or null if the job has no such file.
+         */
+        Path getOutputFile(String fileName) {
+            List<Path> files = getSummaryFiles();
+            files.addAll(getErrorFiles());
+            for (Path file : files) {
+                if (file.getFileName().toString().equals(fileName)) {
+                    return file;
+                }
+            }
+            return null;
+        }
+
+        synchronized List<String> getBatchErrors() {
+            return new ArrayList<>(batchErrors);
+        }
+
+        /**
+         * @return When the job finished, or 0 if it did not finish yet.
+         */
+        long getEndMillis() {
+            return endMillis;
+        }
+
+        boolean isCancelled() {
+            return cancelled;
+        }
+
+        private void cancel() {
+            cancelled = true;
+            for (Future<?> batchFuture : batchFutures) {
+                batchFuture.cancel(false);
+            }
+        }
+
+        /**
+         * @param lastModifiedMillis When the file of the batch was written.
+         */
+        private void batchResumed(int patients, int errors, long lastModifiedMillis) {
+            resumedPatients.addAndGet(patients);
+            resumedBatches.incrementAndGet();
+            lastResumedMillis = Math.max(lastResumedMillis, lastModifiedMillis);
+            batchCompleted(patients, errors);
+        }
+
+        /**
+         * @return Whether the batch finished the job.
+         */
+        private boolean batchCompleted(int patients, int errors) {
+            processedPatients.addAndGet(patients);
+            failedPatients.addAndGet(errors);
+            completedBatches.incrementAndGet();
+            return finishIfDone();
+        }
+
+        /**
+         * @return Whether the batch finished the job.
+         */
+        private boolean batchFailed(Exception e) {
+            synchronized (this) {
+                batchErrors.add(String.valueOf(e.getMessage()));
+            }
+            failedBatches.incrementAndGet();
+            return finishIfDone();
+        }
+
+        private synchronized boolean finishIfDone() {
+            if (!isFinished() || endMillis != 0) return false;
+            // a job whose batches were all written before a restart finished with its last batch
+            endMillis = resumedBatches.get() == getBatchCount() ? lastResumedMillis : System.currentTimeMillis();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package ca.uhn.fhir.jpa.starter.custom;
+
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Records the {@link SummaryStatistics} of patient summary requests as Micrometer meters:
+ * <ul>
+ * <li>{@code mhr.ps.summary.stage} timers per stage (patient-match, document-fetch, generation, provenance
+ * and serialization), tagged with the content,</li>
+ * <li>{@code mhr.ps.summary.section} timers tagged with the section code,</li>
+ * <li>{@code mhr.ps.summary.documents}, {@code mhr.ps.summary.entries.scanned},
+ * {@code mhr.ps.summary.entries.emitted} and {@code mhr.ps.summary.size} distribution summaries,</li>
+ * <li>{@code mhr.ps.summary.provenances} and {@code mhr.ps.summary.dedupe.hits} counters,</li>
+ * <li>{@code mhr.ps.summary.sections.skipped} counters tagged with the section code, of the optional sections
+ * skipped as a request exceeded its deadline.</li>
+ * </ul>
+ * The content tag is {@code 60591-5} for patient summaries and {@code other} for any other requested content
+ * code, so clients cannot create meters. The size of a summary is the number of characters of the response
+ * body, counted as it is written.
+ * The meters are looked up once per tag value and kept, so recording a request only reads the clock and
+ * updates the meters. Without a MeterRegistry bean the meters are recorded in the global registry.
+ */
+@Component
+@Interceptor
+public class PatientSummaryMetrics implements InitializingBean {
+
+    static final String SERIALIZATION = "serialization";
+
+    // the content tag of a summary request whose response is being serialized, kept with the request
+    private static final String CONTENT_CODE_KEY = PatientSummaryMetrics.class.getName() + ".contentCode";
+    private static final String SERIALIZATION_START_KEY = PatientSummaryMetrics.class.getName() + ".serializationStart";
+    private static final String RESPONSE_WRITER_KEY = PatientSummaryMetrics.class.getName() + ".responseWriter";
+
+    private static final String PATIENT_SUMMARY_CODE = "60591-5";
+    private static final String OTHER_CONTENT = "other";
+
+    @Autowired
+    private IInterceptorService interceptorService;
+
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
+
+    private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, DistributionSummary> distributions = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<>();
+
+    @Override
+    public void afterPropertiesSet() {
+        if (meterRegistry == null) {
+            meterRegistry = Metrics.globalRegistry;
+        }
+        interceptorService.registerInterceptor(this);
+    }
+
+    /**
+     * Records the statistics of a summary request.
+     *
+     * @param contentCode The requested content code.
+     * @param requestDetails The request, its serialization is timed and its response size recorded as well if
+     *     it is given.
+     */
+    void record(String contentCode, SummaryStatistics statistics, RequestDetails requestDetails) {
+        String content = contentTag(contentCode);
+        for (Map.Entry<String, Long> stage : statistics.getStageNanos().entrySet()) {
+            stageTimer(stage.getKey(), content).record(stage.getValue(), TimeUnit.NANOSECONDS);
+        }
+        for (Map.Entry<String, Long> section : statistics.getSectionNanos().entrySet()) {
+            timers.computeIfAbsent("section|" + section.getKey(), k -> Timer.builder("mhr.ps.summary.section")
+                    .description("Time spent generating a section of a patient summary")
+                    .tag("section", section.getKey())
+                    .register(meterRegistry))
+                .record(section.getValue(), TimeUnit.NANOSECONDS);
+        }
+        for (String skippedSection : statistics.getSkippedSections()) {
+            counters.computeIfAbsent("skipped|" + skippedSection, k -> Counter.builder("mhr.ps.summary.sections.skipped")
+                    .description("Optional sections of patient summaries skipped past the request deadline")
+                    .tag("section", skippedSection)
+                    .register(meterRegistry))
+                .increment();
+        }
+
+        if (statistics.getDocumentsLoaded() > 0) {
+            distribution("mhr.ps.summary.documents", content, "documents").record(statistics.getDocumentsLoaded());
+            distribution("mhr.ps.summary.entries.scanned", content, "entries").record(statistics.getEntriesScanned());
+            distribution("mhr.ps.summary.entries.emitted", content, "entries").record(statistics.getEntriesEmitted());
+            counter("mhr.ps.summary.provenances", content).increment(statistics.getProvenancesCreated());
+            counter("mhr.ps.summary.dedupe.hits", content).increment(statistics.getDedupeHits());
+        }
+
+        if (requestDetails != null) {
+            requestDetails.getUserData().put(CONTENT_CODE_KEY, content);
+        }
+    }
+
+    /**
+     * Records the size of a summary written by the server itself, such as a streamed summary.
+     */
+    void recordSize(String contentCode, long characters) {
+        distribution("mhr.ps.summary.size", contentTag(contentCode), "characters").record(characters);
+    }
+
+    @Hook(Pointcut.SERVER_OUTGOING_RESPONSE)
+    public void outgoingResponse(RequestDetails requestDetails) {
+        if (requestDetails.getUserData().containsKey(CONTENT_CODE_KEY)) {
+            requestDetails.getUserData().put(SERIALIZATION_START_KEY, System.nanoTime());
+        }
+    }
+
+    @Hook(Pointcut.SERVER_OUTGOING_WRITER_CREATED)
+    public Writer outgoingWriterCreated(Writer writer, RequestDetails requestDetails) {
+        if (!requestDetails.getUserData().containsKey(CONTENT_CODE_KEY)) {
+            return writer;
+        }
+        StreamingBundleWriter.CountingWriter countingWriter = new StreamingBundleWriter.CountingWriter(writer);
+        requestDetails.getUserData().put(RESPONSE_WRITER_KEY, countingWriter);
+        return countingWriter;
+    }
+
+    @Hook(Pointcut.SERVER_PROCESSING_COMPLETED_NORMALLY)
+    public void processingCompleted(RequestDetails requestDetails) {
+        Object content = requestDetails.getUserData().get(CONTENT_CODE_KEY);
+        Object serializationStart = requestDetails.getUserData().get(SERIALIZATION_START_KEY);
+        if (content != null && serializationStart != null) {
+            stageTimer(SERIALIZATION, (String) content)
+                .record(System.nanoTime() - (Long) serializationStart, TimeUnit.NANOSECONDS);
+        }
+        Object responseWriter = requestDetails.getUserData().get(RESPONSE_WRITER_KEY);
+        if (content != null && responseWriter != null) {
+            distribution("mhr.ps.summary.size", (String) content, "characters")
+                .record(((StreamingBundleWriter.CountingWriter) responseWriter).getCount());
+        }
+    }
+
+    /**
+     * Maps a requested content code to the content tag of the meters, one of a fixed set of values.
+     */
+    private static String contentTag(String contentCode) {
+        return PATIENT_SUMMARY_CODE.equals(contentCode) ? PATIENT_SUMMARY_CODE : OTHER_CONTENT;
+    }
+
+    private Timer stageTimer(String stage, String content) {
+        return timers.computeIfAbsent("stage|" + stage + "|" + content, k -> Timer.builder("mhr.ps.summary.stage")
+            .description("Time spent in a stage of a patient summary request")
+            .tag("stage", stage)
+            .tag("content", content)
+            .register(meterRegistry));
+    }
+
+    private DistributionSummary distribution(String name, String content, String baseUnit) {
+        return distributions.computeIfAbsent(name + "|" + content, k -> DistributionSummary.builder(name)
+            .baseUnit(baseUnit)
+            .tag("content", content)
+            .register(meterRegistry));
+    }
+
+    private Counter counter(String name, String content) {
+        return counters.computeIfAbsent(name + "|" + content, k -> Counter.builder(name)
+            .tag("content", content)
+            .register(meterRegistry));
+    }
+}
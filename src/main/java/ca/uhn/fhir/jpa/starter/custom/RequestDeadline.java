@@ -0,0 +1,39 @@
+package ca.uhn.fhir.jpa.starter.custom;
+
+/**
+ * The time by which a summary request should complete. The stages of a summary check it between units of
+ * work and leave out what is optional once it is exceeded, see {@code mhr.ps.request-deadline-ms}.
+ */
+final class RequestDeadline {
+
+    /** No deadline, never exceeded. */
+    static final RequestDeadline NONE = new RequestDeadline(0, 0);
+
+    private final long deadlineNanos;
+    private final long budgetMillis;
+
+    private RequestDeadline(long deadlineNanos, long budgetMillis) {
+        this.deadlineNanos = deadlineNanos;
+        this.budgetMillis = budgetMillis;
+    }
+
+    /**
+     * @param budgetMillis The time the request may take from now, 0 or less for no deadline.
+     */
+    static RequestDeadline after(long budgetMillis) {
+        if (budgetMillis <= 0) return NONE;
+        return new RequestDeadline(System.nanoTime() + budgetMillis * 1_000_000, budgetMillis);
+    }
+
+    boolean isExceeded() {
+        // compared by difference, nanoTime may overflow
+        return this != NONE && System.nanoTime() - deadlineNanos > 0;
+    }
+
+    /**
+     * @return The time the request was given, in milliseconds.
+     */
+    long getBudgetMillis() {
+        return budgetMillis;
+    }
+}
@@ -0,0 +1,136 @@
+package ca.uhn.fhir.jpa.starter.custom;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.UUID;
+
+import org.hl7.fhir.r4.model.Bundle;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+
+/**
+ * Writes a Bundle as JSON one entry at a time, so the Bundle is never held as a whole in text. The elements of
+ * the Bundle other than its entries are encoded by the parser around a placeholder entry, which is replaced by
+ * the entries as they are encoded.
+ */
+class StreamingBundleWriter {
+
+    private final IParser parser;
+    private final CountingWriter writer;
+
+    StreamingBundleWriter(FhirContext fhirContext, Writer writer) {
+        this.parser = fhirContext.newJsonParser();
+        this.writer = new CountingWriter(writer);
+    }
+
+    /**
+     * Writes the Bundle. The resources of its entries are released once they are written, so the entries
+     * already written can be collected while the others are encoded; the Bundle is not to be used afterwards.
+     */
+    void write(Bundle bundle) throws IOException {
+        List<Bundle.BundleEntryComponent> entries = bundle.getEntry();
+        // the placeholder marks where the entries go, wherever the parser places the entry element
+        String placeholderUrl = "urn:uuid:" + UUID.randomUUID();
+        String placeholder = "{\"fullUrl\":\"" + placeholderUrl + "\"}";
+        String json;
+        bundle.setEntry(null);
+        try {
+            bundle.addEntry().setFullUrl(placeholderUrl);
+            json = parser.encodeResourceToString(bundle);
+        } finally {
+            bundle.setEntry(entries);
+        }
+        int placeholderStart = json.indexOf(placeholder);
+        if (placeholderStart < 0) {
+            throw new IllegalStateException("The entry placeholder is missing from the encoded Bundle.");
+        }
+
+        writer.write(json, 0, placeholderStart);
+        for (int i = 0; i < entries.size(); i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            Bundle.BundleEntryComponent entry = entries.get(i);
+            writeEntry(entry);
+            entry.setResource(null);
+        }
+        int placeholderEnd = placeholderStart + placeholder.length();
+        writer.write(json, placeholderEnd, json.length() - placeholderEnd);
+        writer.flush();
+    }
+
+    private void writeEntry(Bundle.BundleEntryComponent entry) throws IOException {
+        writer.write('{');
+        if (entry.getFullUrl() != null) {
+            writer.write("\"fullUrl\":");
+            writeString(entry.getFullUrl());
+            if (entry.getResource() != null) {
+                writer.write(',');
+            }
+        }
+        if (entry.getResource() != null) {
+            writer.write("\"resource\":");
+            parser.encodeResourceToWriter(entry.getResource(), writer);
+        }
+        writer.write('}');
+    }
+
+    /**
+     * @return The number of characters written so far.
+     */
+    long getCharactersWritten() {
+        return writer.count;
+    }
+
+    private void writeString(String value) throws IOException {
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                writer.write('\\');
+                writer.write(c);
+            } else if (c < 0x20) {
+                writer.write(String.format("\\u%04x", (int) c));
+            } else {
+                writer.write(c);
+            }
+        }
+        writer.write('"');
+    }
+
+    /**
+     * Counts the characters written through it, see {@link PatientSummaryMetrics}.
+     */
+    static class CountingWriter extends FilterWriter {
+        private long count = 0;
+
+        CountingWriter(Writer out) {
+            super(out);
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            out.write(c);
+            count++;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            out.write(cbuf, off, len);
+            count += len;
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            out.write(str, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package ca.uhn.fhir.jpa.starter.custom;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.StringJoiner;
+
+/**
+ * Timings and counts of a single patient summary request: the time spent in each stage and section, and how
+ * many documents, entries and Provenances the summary took, and the sections skipped past the deadline of the
+ * request. Filled by one request thread, not thread safe.
+ * See {@link PatientSummaryMetrics}, and {@link #toServerTiming()} and {@link #toCostReport()} for the numbers
+ * of a single request.
+ */
+class SummaryStatistics {
+
+    static final String PATIENT_MATCH = "patient-match";
+    static final String DOCUMENT_FETCH = "document-fetch";
+    static final String GENERATION = "generation";
+    static final String PROVENANCE = "provenance";
+
+    private final Map<String, Long> stageNanos = new LinkedHashMap<>();
+    private final Map<String, Long> sectionNanos = new LinkedHashMap<>();
+    private final List<String> skippedSections = new ArrayList<>();
+    private int documentsLoaded = 0;
+    private int entriesScanned = 0;
+    private int entriesEmitted = 0;
+    private int provenancesCreated = 0;
+    private int dedupeHits = 0;
+
+    /**
+     * Adds the time since {@code startNanos}, taken from {@link System#nanoTime()}, to a stage.
+     */
+    void addStage(String stage, long startNanos) {
+        stageNanos.merge(stage, System.nanoTime() - startNanos, Long::sum);
+    }
+
+    /**
+     * Adds the time since {@code startNanos} to the section with the given LOINC code.
+     */
+    void addSection(String sectionCode, long startNanos) {
+        sectionNanos.merge(sectionCode, System.nanoTime() - startNanos, Long::sum);
+    }
+
+    /**
+     * Records an optional section, by LOINC code, that was not generated as the request exceeded its deadline.
+     */
+    void addSkippedSection(String sectionCode) {
+        skippedSections.add(sectionCode);
+    }
+
+    void setDocumentsLoaded(int documentsLoaded) {
+        this.documentsLoaded = documentsLoaded;
+    }
+
+    void addEntriesScanned(int count) {
+        entriesScanned += count;
+    }
+
+    void addEntryEmitted() {
+        entriesEmitted++;
+    }
+
+    void addProvenanceCreated() {
+        provenancesCreated++;
+    }
+
+    void addDedupeHit() {
+        dedupeHits++;
+    }
+
+    /**
+     * @return The time spent in each stage in nanoseconds, in the order the stages ran.
+     */
+    Map<String, Long> getStageNanos() {
+        return Collections.unmodifiableMap(stageNanos);
+    }
+
+    /**
+     * @return The time spent in each section in nanoseconds, keyed by LOINC code.
+     */
+    Map<String, Long> getSectionNanos() {
+        return Collections.unmodifiableMap(sectionNanos);
+    }
+
+    /**
+     * @return The LOINC codes of the sections skipped past the deadline, empty if the summary is complete.
+     */
+    List<String> getSkippedSections() {
+        return Collections.unmodifiableList(skippedSections);
+    }
+
+    int getDocumentsLoaded() {
+        return documentsLoaded;
+    }
+
+    int getEntriesScanned() {
+        return entriesScanned;
+    }
+
+    int getEntriesEmitted() {
+        return entriesEmitted;
+    }
+
+    int getProvenancesCreated() {
+        return provenancesCreated;
+    }
+
+    int getDedupeHits() {
+        return dedupeHits;
+    }
+
+    /**
+     * Formats the timings as a Server-Timing header value: a metric per stage and per section, and the
+     * assembly of the summary, the generation time outside the sections. Provenance generation is part of
+     * the sections and the assembly.
+     */
+    String toServerTiming() {
+        StringJoiner serverTiming = new StringJoiner(", ");
+        for (Map.Entry<String, Long> stage : stageNanos.entrySet()) {
+            if (!GENERATION.equals(stage.getKey())) {
+                serverTiming.add(timingMetric(stage.getKey(), stage.getValue()));
+            }
+        }
+        long sectionsNanos = 0;
+        for (Map.Entry<String, Long> section : sectionNanos.entrySet()) {
+            serverTiming.add(timingMetric("section-" + section.getKey(), section.getValue()));
+            sectionsNanos += section.getValue();
+        }
+        Long generationNanos = stageNanos.get(GENERATION);
+        if (generationNanos != null) {
+            serverTiming.add(timingMetric("assembly", generationNanos - sectionsNanos));
+        }
+        return serverTiming.toString();
+    }
+
+    /**
+     * Describes the cost of the summary, to compare requests.
+     */
+    String toCostReport() {
+        String costReport = String.format(Locale.ROOT,
+            "Summary cost: %d documents loaded, %d entries scanned, %d entries emitted, %d Provenances created, %d dedupe hits.",
+            documentsLoaded, entriesScanned, entriesEmitted, provenancesCreated, dedupeHits);
+        if (!stageNanos.containsKey(GENERATION)) {
+            costReport += " The summary was served from the cache.";
+        }
+        if (!skippedSections.isEmpty()) {
+            costReport += " Sections skipped past the deadline: " + String.join(", ", skippedSections) + ".";
+        }
+        return costReport;
+    }
+
+    private static String timingMetric(String name, long nanos) {
+        return String.format(Locale.ROOT, "%s;dur=%.1f", name, nanos / 1_000_000.0);
+    }
+}
@@ -0,0 +1,109 @@
+package ca.uhn.fhir.jpa.starter.custom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.hl7.fhir.r4.model.Age;
+import org.hl7.fhir.r4.model.AllergyIntolerance;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Period;
+import org.hl7.fhir.r4.model.Procedure;
+import org.hl7.fhir.r4.model.Range;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.jupiter.api.Test;
+
+class ClinicalItemKeyTest {
+
+    private static Condition condition(String... codes) {
+        Condition condition = new Condition();
+        for (String code : codes) {
+            condition.getCode().addCoding().setSystem("http://snomed.info/sct").setCode(code);
+        }
+        return condition;
+    }
+
+    @Test
+    void parsesStrategyProperty() {
+        assertEquals(ClinicalItemKey.Strategy.NONE, ClinicalItemKey.Strategy.fromProperty(" none "));
+        assertEquals(ClinicalItemKey.Strategy.CONTENT, ClinicalItemKey.Strategy.fromProperty("Content"));
+        assertThrows(IllegalArgumentException.class, () -> ClinicalItemKey.Strategy.fromProperty("codes"));
+    }
+
+    @Test
+    void noKeysWithoutStrategy() {
+        Condition condition = condition("38341003");
+        condition.addIdentifier().setSystem("urn:example").setValue("1");
+        assertNull(ClinicalItemKey.of(condition, ClinicalItemKey.Strategy.NONE));
+    }
+
+    @Test
+    void identifierKeysIncludeTheResourceType() {
+        Condition condition = condition("38341003");
+        condition.addIdentifier().setSystem("urn:example").setValue("1");
+        Procedure procedure = new Procedure();
+        procedure.addIdentifier().setSystem("urn:example").setValue("1");
+
+        String conditionKey = ClinicalItemKey.of(condition, ClinicalItemKey.Strategy.IDENTIFIER);
+        assertEquals("Condition|urn:example|1", conditionKey);
+        assertNotEquals(conditionKey, ClinicalItemKey.of(procedure, ClinicalItemKey.Strategy.IDENTIFIER));
+        // identifiers without a system are not keys
+        assertNull(ClinicalItemKey.of(new Condition().addIdentifier(new org.hl7.fhir.r4.model.Identifier().setValue("1")),
+            ClinicalItemKey.Strategy.IDENTIFIER));
+        // unsupported resource types are never deduplicated
+        assertNull(ClinicalItemKey.of(new Observation(), ClinicalItemKey.Strategy.CONTENT));
+    }
+
+    @Test
+    void contentKeysIgnoreCodingOrder() {
+        Condition first = condition("1", "2").setOnset(new DateTimeType("2020-01-01"));
+        Condition second = condition("2", "1").setOnset(new DateTimeType("2020-01-01"));
+        Condition otherOnset = condition("1", "2").setOnset(new DateTimeType("2021-01-01"));
+
+        String key = ClinicalItemKey.of(first, ClinicalItemKey.Strategy.CONTENT);
+        assertNotNull(key);
+        assertEquals(key, ClinicalItemKey.of(second, ClinicalItemKey.Strategy.CONTENT));
+        assertNotEquals(key, ClinicalItemKey.of(otherOnset, ClinicalItemKey.Strategy.CONTENT));
+        assertNull(ClinicalItemKey.of(first, ClinicalItemKey.Strategy.IDENTIFIER));
+    }
+
+    @Test
+    void contentKeysFallBackToCodeText() {
+        AllergyIntolerance first = new AllergyIntolerance();
+        first.getCode().setText(" Peanut ");
+        AllergyIntolerance second = new AllergyIntolerance();
+        second.getCode().setText("peanut");
+        assertEquals(ClinicalItemKey.of(first, ClinicalItemKey.Strategy.CONTENT),
+            ClinicalItemKey.of(second, ClinicalItemKey.Strategy.CONTENT));
+        assertNull(ClinicalItemKey.of(new AllergyIntolerance(), ClinicalItemKey.Strategy.CONTENT));
+    }
+
+    @Test
+    void contentKeysOfComplexOnsets() {
+        Condition period = condition("1").setOnset(new Period().setStartElement(new DateTimeType("2020-01-01")));
+        Condition otherPeriod = condition("1").setOnset(new Period().setStartElement(new DateTimeType("2020-02-01")));
+        assertNotEquals(ClinicalItemKey.of(period, ClinicalItemKey.Strategy.CONTENT),
+            ClinicalItemKey.of(otherPeriod, ClinicalItemKey.Strategy.CONTENT));
+
+        Age age = new Age();
+        age.setValue(40).setSystem("http://unitsofmeasure.org").setCode("a");
+        Age sameAge = new Age();
+        sameAge.setValue(new java.math.BigDecimal("40.0")).setSystem("http://unitsofmeasure.org").setCode("a");
+        assertEquals(ClinicalItemKey.of(condition("1").setOnset(age), ClinicalItemKey.Strategy.CONTENT),
+            ClinicalItemKey.of(condition("1").setOnset(sameAge), ClinicalItemKey.Strategy.CONTENT));
+
+        Age low = new Age();
+        low.setValue(40).setSystem("http://unitsofmeasure.org").setCode("a");
+        Condition range = condition("1").setOnset(new Range().setLow(low));
+        assertNotNull(ClinicalItemKey.of(range, ClinicalItemKey.Strategy.CONTENT));
+        assertNotEquals(ClinicalItemKey.of(range, ClinicalItemKey.Strategy.CONTENT),
+            ClinicalItemKey.of(condition("1").setOnset(age), ClinicalItemKey.Strategy.CONTENT));
+
+        assertNotNull(ClinicalItemKey.of(condition("1").setOnset(new StringType("childhood")), ClinicalItemKey.Strategy.CONTENT));
+        assertNotNull(ClinicalItemKey.of(condition("1"), ClinicalItemKey.Strategy.CONTENT));
+    }
+}
@@ -0,0 +1,26 @@
+package ca.uhn.fhir.jpa.starter.custom;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class CustomBundleProviderTest {
+
+    private static final String ETAG = "W/\"abc\"";
+
+    @Test
+    void ifNoneMatchUsesWeakComparison() {
+        assertTrue(CustomBundleProvider.matchesIfNoneMatch(ETAG, "W/\"abc\""));
+        assertTrue(CustomBundleProvider.matchesIfNoneMatch(ETAG, "\"abc\""));
+        assertTrue(CustomBundleProvider.matchesIfNoneMatch(ETAG, "\"x\", W/\"abc\""));
+        assertTrue(CustomBundleProvider.matchesIfNoneMatch(ETAG, "*"));
+    }
+
+    @Test
+    void ifNoneMatchWithOtherTags() {
+        assertFalse(CustomBundleProvider.matchesIfNoneMatch(ETAG, null));
+        assertFalse(CustomBundleProvider.matchesIfNoneMatch(ETAG, "W/\"abd\""));
+        assertFalse(CustomBundleProvider.matchesIfNoneMatch(ETAG, "abc"));
+    }
+}
@@ -0,0 +1,79 @@
+package ca.uhn.fhir.jpa.starter.custom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Set;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Composition;
+import org.hl7.fhir.r4.model.Identifier;
+import org.junit.jupiter.api.Test;
+
+class DocumentVersionTest {
+
+    private static Bundle document(String id, String bundleIdentifier, String compositionIdentifier, long timestamp) {
+        Bundle document = new Bundle();
+        document.setId("Bundle/" + id + "/_history/1");
+        document.setType(Bundle.BundleType.DOCUMENT);
+        document.setIdentifier(new Identifier().setSystem("urn:bundle").setValue(bundleIdentifier));
+        document.setTimestamp(new Date(timestamp));
+        Composition composition = new Composition();
+        composition.setIdentifier(new Identifier().setSystem("urn:composition").setValue(compositionIdentifier));
+        document.addEntry().setResource(composition);
+        return document;
+    }
+
+    private static Bundle replacing(Bundle document, String system, String value) {
+        ((Composition) document.getEntryFirstRep().getResource()).addRelatesTo()
+            .setCode(Composition.DocumentRelationshipType.REPLACES)
+            .setTarget(new Identifier().setSystem(system).setValue(value));
+        return document;
+    }
+
+    @Test
+    void sourceKeyIsTheStoredVersion() {
+        assertEquals("a/1", DocumentVersion.of(document("a", "1", "c1", 1000)).getSourceKey());
+    }
+
+    @Test
+    void olderVersionOfTheSameCompositionIsSuperseded() {
+        DocumentVersion older = DocumentVersion.of(document("a", "1", "c1", 1000));
+        DocumentVersion newer = DocumentVersion.of(document("b", "2", "c1", 2000));
+
+        DocumentVersion.Registry registry = new DocumentVersion.Registry();
+        assertTrue(registry.isEmpty());
+        registry.add(older);
+        assertFalse(registry.isSuperseded(older));
+        // superseded once the newer version is known, whatever the order they are added in
+        registry.add(newer);
+        assertTrue(registry.isSuperseded(older));
+        assertFalse(registry.isSuperseded(newer));
+    }
+
+    @Test
+    void versionsWithTheSameTimestampAreKept() {
+        DocumentVersion first = DocumentVersion.of(document("a", "1", "c1", 1000));
+        DocumentVersion second = DocumentVersion.of(document("b", "2", "c1", 1000));
+        Set<DocumentVersion> superseded = DocumentVersion.findSuperseded(Arrays.asList(first, second));
+        assertTrue(superseded.isEmpty());
+    }
+
+    @Test
+    void replacedDocumentsAreSupersededByBundleOrCompositionIdentifier() {
+        DocumentVersion byBundle = DocumentVersion.of(document("a", "1", "c1", 1000));
+        DocumentVersion byComposition = DocumentVersion.of(document("b", "2", "c2", 1000));
+        DocumentVersion other = DocumentVersion.of(document("c", "3", "c3", 1000));
+        DocumentVersion replacing = DocumentVersion.of(
+            replacing(replacing(document("d", "4", "c4", 500), "urn:bundle", "1"), "urn:composition", "c2"));
+
+        Set<DocumentVersion> superseded = DocumentVersion.findSuperseded(
+            Arrays.asList(byBundle, byComposition, other, replacing));
+        assertEquals(2, superseded.size());
+        assertTrue(superseded.contains(byBundle));
+        assertTrue(superseded.contains(byComposition));
+    }
+}
@@ -0,0 +1,62 @@
+package ca.uhn.fhir.jpa.starter.custom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.hl7.fhir.r4.model.Narrative;
+import org.junit.jupiter.api.Test;
+
+class NarrativeBuilderTest {
+
+    private static final NarrativeBuilder.TableTemplate TEMPLATE = new NarrativeBuilder.TableTemplate("Name", "Note");
+
+    @Test
+    void escapesTextWhenEncoded() {
+        Narrative narrative = new NarrativeBuilder(TEMPLATE, NarrativeBuilder.Mode.FULL)
+            .addRow("<script>alert(1)</script>", "a & b \"quoted\"")
+            .build(Narrative.NarrativeStatus.GENERATED);
+
+        String div = narrative.getDivAsString();
+        assertFalse(div.contains("<script>"));
+        assertTrue(div.contains("&lt;script&gt;alert(1)&lt;/script&gt;"));
+        assertTrue(div.contains("a &amp; b"));
+        assertTrue(div.contains("<th>Name</th>"));
+    }
+
+    @Test
+    void escapesLabelsAndFreeText() {
+        String div = new NarrativeBuilder(NarrativeBuilder.Mode.FULL)
+            .addLabel("<b>")
+            .addText("x < y")
+            .build(Narrative.NarrativeStatus.GENERATED)
+            .getDivAsString();
+        assertTrue(div.contains("<b>&lt;b&gt;</b>"));
+        assertTrue(div.contains("x &lt; y"));
+    }
+
+    @Test
+    void deferredNarrativeRendersTheSameDiv() {
+        Narrative full = new NarrativeBuilder(TEMPLATE, NarrativeBuilder.Mode.FULL)
+            .addRow("<a>", null)
+            .build(Narrative.NarrativeStatus.GENERATED);
+        Narrative deferred = new NarrativeBuilder(TEMPLATE, NarrativeBuilder.Mode.DEFERRED)
+            .addRow("<a>", null)
+            .build(Narrative.NarrativeStatus.GENERATED);
+        assertFalse(deferred.hasDiv());
+
+        NarrativeBuilder.renderDeferred(deferred);
+        assertEquals(full.getDivAsString(), deferred.getDivAsString());
+    }
+
+    @Test
+    void minimalAndNoneModes() {
+        Narrative minimal = new NarrativeBuilder(TEMPLATE, NarrativeBuilder.Mode.MINIMAL)
+            .addRow("a").addRow("b")
+            .build(Narrative.NarrativeStatus.GENERATED);
+        assertTrue(minimal.getDivAsString().contains("2 entries recorded."));
+        assertNull(new NarrativeBuilder(TEMPLATE, NarrativeBuilder.Mode.NONE).addRow("a")
+            .build(Narrative.NarrativeStatus.GENERATED));
+    }
+}
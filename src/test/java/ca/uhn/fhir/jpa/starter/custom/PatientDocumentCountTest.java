@@ -0,0 +1,28 @@
+package ca.uhn.fhir.jpa.starter.custom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+class PatientDocumentCountTest {
+
+    @Test
+    void countsOnceWhenFirstNeeded() {
+        AtomicInteger queries = new AtomicInteger();
+        PatientDocumentCount count = new PatientDocumentCount(() -> {
+            queries.incrementAndGet();
+            return 7;
+        });
+        assertEquals(0, queries.get());
+        assertEquals(7, count.get());
+        assertEquals(7, count.get());
+        assertEquals(1, queries.get());
+    }
+
+    @Test
+    void unknownCount() {
+        assertEquals(-1, PatientDocumentCount.UNKNOWN.get());
+    }
+}
@@ -0,0 +1,78 @@
+package ca.uhn.fhir.jpa.starter.custom;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.hl7.fhir.r4.model.DateType;
+import org.hl7.fhir.r4.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.Test;
+
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.param.TokenParamModifier;
+
+class PatientMatchCacheTest {
+
+    private static Patient patient() {
+        Patient patient = new Patient();
+        patient.addName().setFamily("O'Brien-Müller");
+        patient.setBirthDateElement(new DateType("1970-03-15"));
+        patient.setGender(AdministrativeGender.FEMALE);
+        return patient;
+    }
+
+    @Test
+    void canMatchPlainParameters() {
+        assertTrue(PatientMatchCache.canMatch(null, null, null));
+        assertTrue(PatientMatchCache.canMatch(new DateParam("1970-03-15"), new StringParam("obrien"),
+            new TokenParam("female")));
+        assertTrue(PatientMatchCache.canMatch(new DateParam("eq1970-03"), new StringParam("O'Brien", true), null));
+    }
+
+    @Test
+    void cannotMatchPrefixesModifiersAndTimes() {
+        assertFalse(PatientMatchCache.canMatch(new DateParam("ge1970-03-15"), null, null));
+        assertFalse(PatientMatchCache.canMatch(new DateParam("1970-03-15T10:00:00Z"), null, null));
+        StringParam text = new StringParam("obrien");
+        text.setText(true);
+        assertFalse(PatientMatchCache.canMatch(null, text, null));
+        assertFalse(PatientMatchCache.canMatch(null, null, new TokenParam("female").setModifier(TokenParamModifier.NOT)));
+        TokenParam missing = new TokenParam();
+        missing.setMissing(true);
+        assertFalse(PatientMatchCache.canMatch(null, null, missing));
+    }
+
+    @Test
+    void matchesBirthdateWithinGivenPrecision() {
+        assertTrue(PatientMatchCache.matches(patient(), new DateParam("1970-03-15"), null, null));
+        assertTrue(PatientMatchCache.matches(patient(), new DateParam("1970-03"), null, null));
+        assertTrue(PatientMatchCache.matches(patient(), new DateParam("1970"), null, null));
+        assertFalse(PatientMatchCache.matches(patient(), new DateParam("1970-03-16"), null, null));
+        assertFalse(PatientMatchCache.matches(new Patient(), new DateParam("1970"), null, null));
+    }
+
+    @Test
+    void matchesFamilyLikeTheStringSearchParameter() {
+        // normalized, starting with
+        assertTrue(PatientMatchCache.matches(patient(), null, new StringParam("o'brien-MULLER"), null));
+        assertTrue(PatientMatchCache.matches(patient(), null, new StringParam("o'b"), null));
+        assertFalse(PatientMatchCache.matches(patient(), null, new StringParam("brien"), null));
+        // :contains
+        assertTrue(PatientMatchCache.matches(patient(), null, new StringParam("brien").setContains(true), null));
+        // :exact
+        assertTrue(PatientMatchCache.matches(patient(), null, new StringParam("O'Brien-Müller", true), null));
+        assertFalse(PatientMatchCache.matches(patient(), null, new StringParam("o'brien-müller", true), null));
+    }
+
+    @Test
+    void matchesGenderCode() {
+        assertTrue(PatientMatchCache.matches(patient(), null, null, new TokenParam("female")));
+        assertTrue(PatientMatchCache.matches(patient(), null, null,
+            new TokenParam("http://hl7.org/fhir/administrative-gender", "female")));
+        assertFalse(PatientMatchCache.matches(patient(), null, null, new TokenParam("male")));
+        assertFalse(PatientMatchCache.matches(patient(), null, null, new TokenParam("http://example.org/gender", "female")));
+        assertFalse(PatientMatchCache.matches(new Patient(), null, null, new TokenParam("female")));
+    }
+}
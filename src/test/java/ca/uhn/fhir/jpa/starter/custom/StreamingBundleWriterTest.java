@@ -0,0 +1,61 @@
+package ca.uhn.fhir.jpa.starter.custom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.StringWriter;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Signature;
+import org.junit.jupiter.api.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+
+class StreamingBundleWriterTest {
+
+    private static final FhirContext FHIR_CONTEXT = FhirContext.forR4Cached();
+
+    @Test
+    void writesTheSameBundleAsTheParser() throws Exception {
+        Bundle bundle = new Bundle();
+        bundle.setId("bundle-1");
+        bundle.setType(Bundle.BundleType.DOCUMENT);
+        bundle.addEntry().setFullUrl("urn:uuid:1").setResource(new Patient().addName(new HumanName().setFamily("O\"Brien")));
+        bundle.addEntry().setFullUrl("urn:uuid:2");
+        // the signature is encoded after the entries
+        bundle.setSignature(new Signature().addType(new Coding("urn:iso-astm:E1762-95:2013", "1.2.840.10065.1.12.1.1", null)));
+        String expected = FHIR_CONTEXT.newJsonParser().encodeResourceToString(bundle);
+
+        StringWriter out = new StringWriter();
+        StreamingBundleWriter writer = new StreamingBundleWriter(FHIR_CONTEXT, out);
+        writer.write(bundle);
+
+        assertEquals(expected, out.toString());
+        assertEquals(expected.length(), writer.getCharactersWritten());
+    }
+
+    @Test
+    void writesABundleWithoutOtherElements() throws Exception {
+        StringWriter out = new StringWriter();
+        new StreamingBundleWriter(FHIR_CONTEXT, out).write(new Bundle());
+
+        Bundle written = FHIR_CONTEXT.newJsonParser().parseResource(Bundle.class, out.toString());
+        assertEquals(0, written.getEntry().size());
+    }
+
+    @Test
+    void releasesTheWrittenResources() throws Exception {
+        Bundle bundle = new Bundle();
+        bundle.addEntry().setFullUrl("urn:uuid:1").setResource(new Patient());
+
+        new StreamingBundleWriter(FHIR_CONTEXT, new StringWriter()).write(bundle);
+
+        assertEquals(1, bundle.getEntry().size());
+        assertFalse(bundle.getEntryFirstRep().hasResource());
+        assertTrue(bundle.getEntryFirstRep().hasFullUrl());
+    }
+}